@@ -0,0 +1,100 @@
+package com.chat.benchmarks;
+
+import com.chat.common.Message;
+import com.chat.common.MessageFrameCodec;
+import com.chat.common.MessageType;
+import com.chat.common.WireFormat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode cost of the JSON and binary wire formats.
+ *
+ * Run with "-prof gc" to get allocated bytes/op (gc.alloc.rate.norm); the
+ * "wireBytes" counter is the encoded frame size of one operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"CHAT", "USER_LIST", "IMAGE"})
+    public String payload;
+
+    @Param({"JSON", "BINARY"})
+    public WireFormat format;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private Message message;
+    private ByteBuf encoded;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WireBytes {
+        public long wireBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        message = sampleMessage(payload);
+        encoded = MessageFrameCodec.encode(alloc, message, format);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encoded.release();
+    }
+
+    @Benchmark
+    public int encode(WireBytes counter) {
+        ByteBuf buf = MessageFrameCodec.encode(alloc, message, format);
+        int size = buf.readableBytes();
+        counter.wireBytes = size;
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public Message decode() {
+        return MessageFrameCodec.decode(encoded.duplicate());
+    }
+
+    static Message sampleMessage(String payload) {
+        Message msg = new Message();
+        switch (payload) {
+            case "USER_LIST":
+                msg.setType(MessageType.UPDATE_USERS);
+                List<String> users = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    users.add("user" + i);
+                }
+                msg.setOnlineUsers(users);
+                break;
+            case "IMAGE":
+                msg.setType(MessageType.IMAGE);
+                msg.setSender("alice");
+                msg.setRecipient("All");
+                msg.setFileName("meme.png");
+                byte[] data = new byte[64 * 1024];
+                new Random(42).nextBytes(data);
+                msg.setFileData(data);
+                break;
+            default:
+                msg.setType(MessageType.CHAT_ALL);
+                msg.setSender("alice");
+                msg.setContent("Hello everyone, has anyone seen the latest build? 你好");
+                break;
+        }
+        return msg;
+    }
+}
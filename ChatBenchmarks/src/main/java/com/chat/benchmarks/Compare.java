@@ -0,0 +1,100 @@
+package com.chat.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files benchmark by benchmark:
+ *
+ *   java -cp benchmarks.jar com.chat.benchmarks.Compare baseline.json jmh-result.json [threshold%]
+ *
+ * Exits with 1 if any benchmark got worse by more than the threshold (10% by default),
+ * so a build can be gated on it. Throughput is better when higher, every other mode
+ * when lower.
+ */
+public class Compare {
+    private static final class Score {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Compare baseline.json current.json [threshold%]");
+            System.exit(2);
+        }
+        Map<String, Score> base = load(args[0]);
+        Map<String, Score> current = load(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> e : current.entrySet()) {
+            Score now = e.getValue();
+            Score before = base.get(e.getKey());
+            if (before == null || before.score == 0) {
+                System.out.printf("  new    %s  %.3f %s%n", e.getKey(), now.score, now.unit);
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100;
+            double worse = now.mode.equals("thrpt") ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) regressions++;
+            System.out.printf("%s %+7.1f%%  %s  %.3f +- %.3f -> %.3f +- %.3f %s%n", regressed ? "!!" : "  ",
+                    change, e.getKey(), before.score, before.error, now.score, now.error, now.unit);
+        }
+        for (String key : base.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println("  gone   " + key);
+            }
+        }
+        System.out.println(regressions + " regression(s) over " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static Map<String, Score> load(String file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            JsonArray runs = JsonParser.parseReader(in).getAsJsonArray();
+            for (JsonElement el : runs) {
+                JsonObject run = el.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString());
+                if (run.has("params")) {
+                    // Sorted so the key does not depend on the order JMH wrote them in
+                    Map<String, String> params = new TreeMap<>();
+                    for (Map.Entry<String, JsonElement> p : run.getAsJsonObject("params").entrySet()) {
+                        params.put(p.getKey(), p.getValue().getAsString());
+                    }
+                    key.append(params);
+                }
+                JsonObject metric = run.getAsJsonObject("primaryMetric");
+                JsonElement error = metric.get("scoreError");
+                scores.put(key.toString(), new Score(run.get("mode").getAsString(),
+                        metric.get("score").getAsDouble(),
+                        error != null && error.isJsonPrimitive() && error.getAsJsonPrimitive().isNumber()
+                                ? error.getAsDouble() : 0,
+                        metric.get("scoreUnit").getAsString()));
+            }
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,103 @@
+package com.chat.benchmarks;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import com.chat.server.DatabaseManager;
+import com.chat.server.MessageLog;
+import com.chat.server.UserDirectory;
+import com.chat.server.UserProfiles;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DatabaseManager calls against a temp SQLite file seeded with USERS users, each paired
+ * with a friend, and HISTORY private messages between user0 and user1, half of them
+ * still in user1's offline inbox. Run with -t 4 to see the connection pool under
+ * contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+    private static final int USERS = 1000;
+    private static final int HISTORY = 10_000;
+
+    private String conversation;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        TempDatabase.open();
+        for (int i = 0; i < USERS; i++) {
+            DatabaseManager.registerUser("user" + i, "pw");
+        }
+        for (int i = 0; i < USERS; i += 2) {
+            DatabaseManager.addFriendRequest("user" + i, "user" + (i + 1));
+            DatabaseManager.acceptFriend("user" + i, "user" + (i + 1));
+        }
+        for (int i = 0; i < HISTORY; i++) {
+            Message msg = chat("user0", "user1", "message " + i);
+            MessageLog.append(msg);
+            if (i % 2 == 0) {
+                MessageLog.holdFor("user1", msg);
+            }
+        }
+        MessageLog.flushed().get();
+        conversation = MessageLog.conversationOf("user0", "user1");
+    }
+
+    private static Message chat(String sender, String recipient, String content) {
+        Message msg = new Message();
+        msg.setType(MessageType.CHAT_PRIVATE);
+        msg.setSender(sender);
+        msg.setRecipient(recipient);
+        msg.setContent(content);
+        return msg;
+    }
+
+    private static String randomUser() {
+        return "user" + ThreadLocalRandom.current().nextInt(USERS);
+    }
+
+    // The one query a login makes when the user is not in UserProfiles
+    @Benchmark
+    public UserProfiles.Profile loadProfile() {
+        return DatabaseManager.loadProfile(randomUser());
+    }
+
+    @Benchmark
+    public boolean checkLogin() {
+        return DatabaseManager.checkLogin(randomUser(), "pw");
+    }
+
+    // What an admin "next page" costs, now answered from memory
+    @Benchmark
+    public List<String> adminUserPage() {
+        return UserDirectory.page(UserDirectory.Filter.ALL, "user", randomUser(), 100);
+    }
+
+    @Benchmark
+    public List<Message> historyPage() {
+        return DatabaseManager.getHistory(conversation, null, 50);
+    }
+
+    @Benchmark
+    public List<Message> inboxPage() {
+        return DatabaseManager.getInbox("user1", 0, 200);
+    }
+
+    // 100 messages through the write-behind log, until they are committed
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void logAppend() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            MessageLog.append(chat("user2", "user3", "benchmark"));
+        }
+        MessageLog.flushed().get();
+    }
+}
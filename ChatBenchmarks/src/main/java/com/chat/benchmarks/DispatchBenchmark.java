@@ -0,0 +1,127 @@
+package com.chat.benchmarks;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import com.chat.common.TextOperation;
+import com.chat.server.ChatServer;
+import com.chat.server.FriendGraph;
+import com.chat.server.NettyServerHandler;
+import com.chat.server.SlowConsumerHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One inbound message through NettyServerHandler, from channelRead0 until every reply
+ * and forward has been written to the (embedded) recipient channels.
+ *
+ * The sender is logged in by setting the handler's username directly, the login itself
+ * needs the database thread and is covered by DatabaseBenchmark. Chat messages are
+ * logged, so the message log writer runs against a temp database in the background.
+ * COLLAB_OP replaces one character of a 1 KB document in a room everyone online has
+ * joined, so it measures the transform-free path plus the fan-out of the op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({"CHAT_ALL", "CHAT_PRIVATE", "COLLAB_OP", "PRESENCE_SYNC"})
+    public MessageType type;
+
+    // Everyone online, the sender and its friend included
+    @Param({"10"})
+    public int online;
+
+    private EmbeddedChannel[] channels;
+    private EmbeddedChannel sender;
+    private Message message;
+    private long revision;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        TempDatabase.open();
+        channels = new EmbeddedChannel[online];
+        for (int i = 0; i < online; i++) {
+            NettyServerHandler handler = new NettyServerHandler();
+            Field username = NettyServerHandler.class.getDeclaredField("username");
+            username.setAccessible(true);
+            username.set(handler, "user" + i);
+            channels[i] = new EmbeddedChannel(new SlowConsumerHandler(), handler);
+            ChatServer.addClient("user" + i, channels[i]);
+        }
+        sender = channels[0];
+        FriendGraph.add("user0", "user1");
+        FriendGraph.add("user1", "user0");
+
+        message = new Message();
+        message.setType(type);
+        message.setSender("user0");
+        message.setRecipient(type == MessageType.CHAT_ALL ? "All" : "user1");
+        message.setContent("Hello, has anyone seen the latest build?");
+        if (type == MessageType.COLLAB_OP) {
+            joinRoom();
+        }
+    }
+
+    // user0 opens a room and everyone else joins it; the message becomes an edit in it
+    private void joinRoom() {
+        char[] document = new char[1024];
+        Arrays.fill(document, 'x');
+        Message open = new Message();
+        open.setType(MessageType.COLLAB_REQUEST);
+        open.setSender("user0");
+        open.setRecipient("user1");
+        open.setContent(new String(document));
+        sender.writeInbound(open);
+        sender.runPendingTasks();
+        String room = ((Message) sender.readOutbound()).getExtraInfo(); // The opener's snapshot
+        for (int i = 1; i < online; i++) {
+            FriendGraph.add("user0", "user" + i);
+            FriendGraph.add("user" + i, "user0");
+            if (i > 1) {
+                Message invite = new Message();
+                invite.setType(MessageType.COLLAB_REQUEST);
+                invite.setSender("user0");
+                invite.setRecipient("user" + i);
+                invite.setExtraInfo(room);
+                sender.writeInbound(invite);
+                sender.runPendingTasks();
+            }
+            Message accept = new Message();
+            accept.setType(MessageType.COLLAB_ACCEPT);
+            accept.setSender("user" + i);
+            accept.setRecipient("user0");
+            accept.setExtraInfo(room);
+            channels[i].writeInbound(accept);
+            FanOutBenchmark.drain(channels);
+        }
+        message.setRecipient(null);
+        message.setContent(null);
+        message.setExtraInfo(room);
+        message.setOnlineUsers(new TextOperation().retain(100).delete(1).insert("y").retain(923).toList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = 0; i < channels.length; i++) {
+            ChatServer.removeClient("user" + i, channels[i]);
+            channels[i].finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public int dispatch() {
+        if (type == MessageType.COLLAB_OP) {
+            message.setSeq(revision++); // Made on the latest revision
+        }
+        sender.writeInbound(message);
+        return FanOutBenchmark.drain(channels);
+    }
+}
@@ -0,0 +1,80 @@
+package com.chat.benchmarks;
+
+import com.chat.common.Message;
+import com.chat.common.MessageFrameCodec;
+import com.chat.common.MessageType;
+import com.chat.common.WireFormat;
+import com.chat.server.ChatServer;
+import com.chat.server.SlowConsumerHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatServer.broadcastMessage to N logged-in channels.
+ *
+ * The channels are EmbeddedChannels behind the server's SlowConsumerHandler, so this
+ * covers encoding once per wire format, the retained duplicates and the batched flush,
+ * but no socket I/O. MIXED puts every other channel on JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    @Param({"BINARY", "JSON", "MIXED"})
+    public String formats;
+
+    private EmbeddedChannel[] channels;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        channels = new EmbeddedChannel[recipients];
+        for (int i = 0; i < recipients; i++) {
+            EmbeddedChannel ch = new EmbeddedChannel(new SlowConsumerHandler());
+            boolean json = formats.equals("JSON") || (formats.equals("MIXED") && i % 2 == 1);
+            MessageFrameCodec.setWireFormat(ch, json ? WireFormat.JSON : WireFormat.BINARY);
+            ChatServer.addClient("user" + i, ch);
+            channels[i] = ch;
+        }
+        message = CodecBenchmark.sampleMessage("CHAT");
+        message.setType(MessageType.CHAT_ALL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = 0; i < channels.length; i++) {
+            ChatServer.removeClient("user" + i, channels[i]);
+            channels[i].finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public int broadcast() {
+        ChatServer.broadcastMessage(message);
+        return drain(channels);
+    }
+
+    // Runs the pending flushes and throws away what was written, returns the frame count
+    static int drain(EmbeddedChannel... channels) {
+        int frames = 0;
+        for (EmbeddedChannel ch : channels) {
+            ch.runPendingTasks();
+            Object out;
+            while ((out = ch.readOutbound()) != null) {
+                ReferenceCountUtil.release(out);
+                frames++;
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,24 @@
+package com.chat.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the given arguments, writing results to jmh-result.json unless -rf or
+ * -rff say otherwise, so every run leaves a file Compare can check against a baseline.
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-rf")) {
+            argv.add("-rf");
+            argv.add("json");
+        }
+        if (!argv.contains("-rff")) {
+            argv.add("-rff");
+            argv.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(argv.toArray(new String[0]));
+    }
+}
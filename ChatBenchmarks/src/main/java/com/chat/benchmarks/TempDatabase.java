@@ -0,0 +1,27 @@
+package com.chat.benchmarks;
+
+import com.chat.server.DatabaseManager;
+import com.chat.server.MessageLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Points the server at a fresh SQLite file in a temp directory and opens it, with the
+ * message log writer running. Must be called before anything touches DatabaseManager,
+ * once per JVM; every benchmark forks its own.
+ */
+final class TempDatabase {
+    private static File dir;
+
+    static synchronized void open() throws IOException {
+        if (dir != null) {
+            return;
+        }
+        dir = Files.createTempDirectory("chat-bench").toFile();
+        System.setProperty("db.url", "jdbc:sqlite:" + new File(dir, "chat.db").getAbsolutePath());
+        DatabaseManager.init();
+        MessageLog.init();
+    }
+}
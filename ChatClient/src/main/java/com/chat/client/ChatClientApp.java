@@ -1,7 +1,9 @@
 package com.chat.client;
 
+import com.chat.common.CollabSync;
 import com.chat.common.Message;
 import com.chat.common.MessageType;
+import com.chat.common.TextOperation;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -10,8 +12,6 @@ import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
 import javafx.scene.layout.*;
@@ -20,9 +20,9 @@ import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -48,6 +48,7 @@ public class ChatClientApp extends Application {
     private Stage loginStage;
     private Set<String> pinnedFriends = new HashSet<>();
     private Set<String> unreadUsers = new HashSet<>();
+    private Set<String> onlineUsers = new HashSet<>();
     
     // User data
     private String myAvatarColor = "#CCCCCC";
@@ -57,8 +58,8 @@ public class ChatClientApp extends Application {
     private Button collabBtn; // Global collab button
 
     private class ChatSession {
-        VBox chatBox;
-        ScrollPane scrollPane;
+        final String peer; // "All" or the friend's name
+        Transcript transcript;
         
         // Collab parts
         boolean isCollabActive = false;
@@ -68,22 +69,26 @@ public class ChatClientApp extends Application {
         Label statusLabel; // "User is typing..."
         
         boolean isRemoteUpdate = false;
-        boolean isLockedByMe = false;
-        javafx.animation.PauseTransition unlockTimer;
+        // The server's room this editor is part of, known from the invitation or the first snapshot
+        String collabRoom;
+        // Keeps the editor in step with the server's copy, null until a COLLAB_SYNC has arrived
+        CollabOutbox outbox;
         Button copyBtn;
+        Button inviteBtn;
 
-        public ChatSession() {
-            chatBox = new VBox(10);
-            chatBox.setPadding(new Insets(10));
-            chatBox.setStyle("-fx-background-color: white;");
-
-            scrollPane = new ScrollPane(chatBox);
-            scrollPane.setFitToWidth(true);
-            scrollPane.setStyle("-fx-background: white; -fx-background-color: white;");
+        public ChatSession(String peer) {
+            this.peer = peer;
+            transcript = new Transcript(client, username, 400, ChatClientApp.this::showUserInfoPopup, ChatClientApp.this::saveFile,
+                    before -> client.requestHistory(peer, before));
             
             editorArea = new TextArea();
             editorArea.setFont(javafx.scene.text.Font.font("Consolas", 14));
             editorArea.setPromptText("Shared Code Editor - Type here to collaborate...");
+            editorArea.textProperty().addListener((obs, oldVal, newVal) -> {
+                if (!isRemoteUpdate && isCollabActive && outbox != null) {
+                    outbox.edit(TextOperation.diff(oldVal, newVal));
+                }
+            });
             
             statusLabel = new Label();
             statusLabel.setTextFill(Color.RED);
@@ -99,26 +104,33 @@ public class ChatClientApp extends Application {
                 new Alert(Alert.AlertType.INFORMATION, "代码已复制到剪贴板").show();
             });
             
-            editorBox = new VBox(5, statusLabel, editorArea, copyBtn);
+            inviteBtn = new Button("邀请好友加入");
+            inviteBtn.setMaxWidth(Double.MAX_VALUE);
+            inviteBtn.setOnAction(e -> inviteToCollab());
+
+            editorBox = new VBox(5, statusLabel, editorArea, copyBtn, inviteBtn);
             VBox.setVgrow(editorArea, Priority.ALWAYS);
             
             splitPane = new SplitPane();
-            splitPane.getItems().add(scrollPane);
-            
-            unlockTimer = new javafx.animation.PauseTransition(javafx.util.Duration.seconds(2));
-            unlockTimer.setOnFinished(e -> {
-                if (isLockedByMe) {
-                    isLockedByMe = false;
-                    if (!"All".equals(currentRecipient)) {
-                        client.sendCollabUnlock(currentRecipient);
-                    }
-                }
-            });
+            splitPane.getItems().add(transcript.getView());
         }
         
         public javafx.scene.Node getView() {
             return splitPane;
         }
+
+        // First page, once, when the session is first shown
+        public void ensureHistory() {
+            transcript.ensureHistory();
+        }
+
+        public void onHistoryPage(Message page) {
+            transcript.onHistoryPage(page);
+        }
+
+        public void append(Message msg) {
+            transcript.append(msg);
+        }
         
         public void enableCollab(boolean enable) {
             isCollabActive = enable;
@@ -129,8 +141,95 @@ public class ChatClientApp extends Application {
                 }
             } else {
                 splitPane.getItems().remove(editorBox);
+                collabRoom = null;
+                dropOutbox();
+                editorArea.setEditable(true);
+                statusLabel.setText("");
+            }
+        }
+
+        // Nothing typed here is sent until the server's snapshot has arrived
+        public void awaitSnapshot() {
+            dropOutbox();
+            editorArea.setEditable(false);
+            statusLabel.setText("正在同步文档...");
+        }
+
+        public void onSnapshot(Message msg) {
+            collabRoom = msg.getExtraInfo();
+            dropOutbox();
+            outbox = new CollabOutbox(client, new CollabSync(collabRoom, msg.getSeq() != null ? msg.getSeq() : 0));
+            String text = msg.getContent() != null ? msg.getContent() : "";
+            isRemoteUpdate = true;
+            int caret = editorArea.getCaretPosition();
+            editorArea.setText(text);
+            editorArea.positionCaret(Math.min(caret, text.length()));
+            isRemoteUpdate = false;
+            editorArea.setEditable(true);
+            statusLabel.setText(msg.getOnlineUsers() != null ? "协作成员: " + String.join(", ", msg.getOnlineUsers()) : "");
+        }
+
+        public void onRemoteOp(Message msg) {
+            if (outbox == null) return; // Made before our snapshot, which already includes it
+            try {
+                if (CollabSync.isAck(msg)) {
+                    outbox.onAck(msg);
+                    return;
+                }
+                TextOperation op = outbox.sync().remote(msg);
+                if (op.baseLength() != editorArea.getLength()) {
+                    throw new IllegalStateException("Length " + op.baseLength() + " != " + editorArea.getLength());
+                }
+                applyRemote(op);
+            } catch (RuntimeException e) {
+                System.err.println("Collab " + collabRoom + " out of step: " + e.getMessage());
+                awaitSnapshot();
+                client.sendCollabSync(collabRoom);
             }
         }
+
+        private void dropOutbox() {
+            if (outbox != null) {
+                outbox.stop();
+                outbox = null;
+            }
+        }
+
+        private void inviteToCollab() {
+            List<String> friends = new ArrayList<>();
+            for (String item : userList.getItems()) {
+                if (!item.equals("公共聊天室") && !item.equals(peer)) friends.add(item);
+            }
+            if (collabRoom == null || friends.isEmpty()) return;
+            ChoiceDialog<String> dialog = new ChoiceDialog<>(friends.get(0), friends);
+            dialog.setTitle("邀请协作");
+            dialog.setHeaderText("选择要邀请的好友：");
+            dialog.showAndWait().ifPresent(friend -> client.sendCollabRequest(friend, collabRoom, null));
+        }
+
+        // Edits the text in place, so a 50 KB document is not replaced for every keystroke
+        private void applyRemote(TextOperation op) {
+            int caret = op.transformIndex(editorArea.getCaretPosition());
+            int anchor = op.transformIndex(editorArea.getAnchor());
+            isRemoteUpdate = true;
+            int pos = 0;
+            for (String c : op.toList()) {
+                switch (c.charAt(0)) {
+                    case '=':
+                        pos += Integer.parseInt(c.substring(1));
+                        break;
+                    case '+':
+                        editorArea.insertText(pos, c.substring(1));
+                        pos += c.length() - 1;
+                        break;
+                    default:
+                        editorArea.deleteText(pos, pos + Integer.parseInt(c.substring(1)));
+                        break;
+                }
+            }
+            editorArea.selectRange(anchor, caret);
+            isRemoteUpdate = false;
+        }
     }
 
     public static void main(String[] args) {
@@ -232,9 +331,10 @@ public class ChatClientApp extends Application {
         mainRoot.setTop(chatTitleLabel);
 
         // Initialize Global Chat Session
-        chatSessions.put("All", new ChatSession());
+        chatSessions.put("All", new ChatSession("All"));
         currentRecipient = "All";
         mainRoot.setCenter(chatSessions.get("All").getView());
+        chatSessions.get("All").ensureHistory();
 
         // Right: User List & Profile
         VBox rightBox = new VBox(10);
@@ -286,6 +386,9 @@ public class ChatClientApp extends Application {
                     } else {
                         box.getChildren().add(createAvatar(item, "#CCCCCC")); // Default color for friends for now
                         box.getChildren().add(new Label(item));
+                        if (onlineUsers.contains(item)) {
+                            box.getChildren().add(new Label("在线"));
+                        }
                         
                         if (unreadUsers.contains(item)) {
                             box.getChildren().add(new Circle(4, Color.RED));
@@ -354,21 +457,7 @@ public class ChatClientApp extends Application {
                     chatTitleLabel.setText("与 " + selected + " 聊天中");
                     collabBtn.setDisable(false);
                     if (!chatSessions.containsKey(selected)) {
-                        ChatSession session = new ChatSession();
-                        // Add listener for collaboration
-                        session.editorArea.textProperty().addListener((obs, oldVal, newVal) -> {
-                            if (!session.isRemoteUpdate && session.isCollabActive) {
-                                // Locking Logic
-                                if (!session.isLockedByMe) {
-                                    session.isLockedByMe = true;
-                                    client.sendCollabLock(selected);
-                                }
-                                session.unlockTimer.playFromStart(); // Reset timer
-                                
-                                client.sendCollabUpdate(selected, newVal);
-                            }
-                        });
-                        chatSessions.put(selected, session);
+                        chatSessions.put(selected, new ChatSession(selected));
                     }
                     
                     // Update button text based on state
@@ -382,6 +471,7 @@ public class ChatClientApp extends Application {
                     }
                 }
                 mainRoot.setCenter(chatSessions.get(currentRecipient).getView());
+                chatSessions.get(currentRecipient).ensureHistory();
             }
         });
 
@@ -402,12 +492,17 @@ public class ChatClientApp extends Application {
                  ChatSession s = chatSessions.get(currentRecipient);
                  if (s != null && s.isCollabActive) {
                      // Stop collaboration
+                     if (s.collabRoom != null) client.sendCollabEnd(s.collabRoom);
                      s.enableCollab(false);
-                     client.sendCollabEnd(currentRecipient);
                      collabBtn.setText("代码协作");
                      collabBtn.setStyle("");
-                 } else {
-                     client.sendCollabRequest(currentRecipient);
+                 } else if (s != null) {
+                     // Opens a room on the server with our text, the snapshot makes the editor live
+                     client.sendCollabRequest(currentRecipient, null, s.editorArea.getText());
+                     s.enableCollab(true);
+                     s.awaitSnapshot();
+                     collabBtn.setText("停止协作");
+                     collabBtn.setStyle("-fx-background-color: #ff4444; -fx-text-fill: white;");
                      Alert info = new Alert(Alert.AlertType.INFORMATION, "已发送协作请求，等待对方接受...");
                      info.show();
                  }
@@ -453,6 +548,14 @@ public class ChatClientApp extends Application {
         }
     }
 
+    private ChatSession findCollab(String room) {
+        if (room == null) return null;
+        for (ChatSession s : chatSessions.values()) {
+            if (room.equals(s.collabRoom) && s.isCollabActive) return s;
+        }
+        return null;
+    }
+
     private void showAddFriendDialog() {
         TextInputDialog dialog = new TextInputDialog();
         dialog.setTitle("添加好友");
@@ -466,6 +569,14 @@ public class ChatClientApp extends Application {
     
     private Stage adminStage;
     private ListView<String> adminUserList;
+    private TextField adminSearchField;
+    private ChoiceBox<String> adminFilterBox;
+    private Button adminPrevBtn;
+    private Button adminNextBtn;
+    // The server pages by name: a page is requested with the last name of the one before it
+    private String adminPageStart;
+    private String adminNextCursor;
+    private final List<String> adminPrevStarts = new ArrayList<>();
     
     private void showAdminPanel() {
         if (adminStage != null && adminStage.isShowing()) {
@@ -480,8 +591,40 @@ public class ChatClientApp extends Application {
         root.setPadding(new Insets(10));
         
         adminUserList = new ListView<>();
+        adminSearchField = new TextField();
+        adminSearchField.setPromptText("按用户名前缀筛选");
+        adminSearchField.setOnAction(e -> requestFirstAdminPage());
+        // The cursors belong to the old prefix, paging restarts from the first page
+        adminSearchField.textProperty().addListener((obs, oldVal, newVal) -> {
+            adminPrevStarts.clear();
+            adminPageStart = null;
+            adminNextCursor = null;
+            adminPrevBtn.setDisable(true);
+            adminNextBtn.setDisable(true);
+        });
+        adminFilterBox = new ChoiceBox<>(FXCollections.observableArrayList("全部", "在线", "已封禁"));
+        adminFilterBox.getSelectionModel().selectFirst();
+        adminFilterBox.setOnAction(e -> requestFirstAdminPage());
+        HBox searchBox = new HBox(10, adminSearchField, adminFilterBox);
+        HBox.setHgrow(adminSearchField, Priority.ALWAYS);
+
         Button refreshBtn = new Button("刷新列表");
-        refreshBtn.setOnAction(e -> client.requestAdminUserList());
+        refreshBtn.setOnAction(e -> requestAdminPage(adminPageStart));
+        adminPrevBtn = new Button("上一页");
+        adminPrevBtn.setDisable(true);
+        adminPrevBtn.setOnAction(e -> {
+            if (!adminPrevStarts.isEmpty()) {
+                requestAdminPage(adminPrevStarts.remove(adminPrevStarts.size() - 1));
+            }
+        });
+        adminNextBtn = new Button("下一页");
+        adminNextBtn.setDisable(true);
+        adminNextBtn.setOnAction(e -> {
+            if (adminNextCursor != null) {
+                adminPrevStarts.add(adminPageStart);
+                requestAdminPage(adminNextCursor);
+            }
+        });
         
         Button banBtn = new Button("封禁/解封");
         banBtn.setStyle("-fx-background-color: orange;");
@@ -509,13 +652,27 @@ public class ChatClientApp extends Application {
         });
         
         HBox btnBox = new HBox(10, refreshBtn, banBtn, deleteBtn);
-        root.getChildren().addAll(new Label("用户列表 (格式: 姓名 : 在线 : 封禁)"), adminUserList, btnBox);
+        HBox pageBox = new HBox(10, adminPrevBtn, adminNextBtn);
+        root.getChildren().addAll(searchBox, new Label("用户列表 (格式: 姓名 : 在线 : 封禁)"), adminUserList, pageBox, btnBox);
         
         Scene scene = new Scene(root, 400, 500);
         adminStage.setScene(scene);
         adminStage.show();
         
-        client.requestAdminUserList();
+        requestFirstAdminPage();
+    }
+
+    private void requestFirstAdminPage() {
+        adminPrevStarts.clear();
+        requestAdminPage(null);
+    }
+
+    private void requestAdminPage(String start) {
+        adminPageStart = start;
+        String prefix = adminSearchField.getText().trim();
+        int filter = adminFilterBox.getSelectionModel().getSelectedIndex();
+        client.requestAdminUserList(prefix.isEmpty() ? null : prefix,
+                filter == 1 ? "online" : filter == 2 ? "banned" : null, start);
     }
     
     private String getSelectedAdminUser() {
@@ -549,7 +706,11 @@ public class ChatClientApp extends Application {
                     
                 case ADMIN_USER_LIST:
                     if (adminUserList != null) {
-                        adminUserList.getItems().setAll(msg.getOnlineUsers());
+                        adminUserList.getItems().setAll(msg.getOnlineUsers() != null
+                                ? msg.getOnlineUsers() : new ArrayList<>());
+                        adminNextCursor = msg.getRecipient(); // Null on the last page
+                        adminNextBtn.setDisable(adminNextCursor == null);
+                        adminPrevBtn.setDisable(adminPrevStarts.isEmpty());
                     }
                     break;
 
@@ -562,6 +723,9 @@ public class ChatClientApp extends Application {
                         this.myAvatarColor = msg.getExtraInfo();
                     }
                     initMainUI();
+                    if (msg.getOnlineUsers() != null) { // Friend list sent along with the login
+                        sortAndSetUserList(new ArrayList<>(msg.getOnlineUsers()));
+                    }
                     break;
                     
                 case LOGIN_FAIL:
@@ -579,6 +743,13 @@ public class ChatClientApp extends Application {
                     regFailAlert.show();
                     break;
 
+                case UPDATE_USERS:
+                    onlineUsers = new HashSet<>(msg.getOnlineUsers());
+                    if (userList != null) {
+                        userList.refresh();
+                    }
+                    break;
+
                 case FRIEND_LIST:
                     List<String> friends = new ArrayList<>();
                     if (msg.getOnlineUsers() != null) {
@@ -613,7 +784,7 @@ public class ChatClientApp extends Application {
                         unreadUsers.add("公共聊天室");
                         userList.refresh();
                     }
-                    addMessage(chatSessions.get("All"), msg.getSender(), msg.getContent(), MessageType.CHAT_ALL, null, null);
+                    addMessage(chatSessions.get("All"), msg);
                     break;
                     
                 case CHAT_PRIVATE:
@@ -622,6 +793,13 @@ public class ChatClientApp extends Application {
                     handlePrivateOrFileMessage(msg);
                     break;
 
+                case HISTORY_PAGE:
+                    ChatSession historySession = chatSessions.get(msg.getRecipient());
+                    if (historySession != null) {
+                        historySession.onHistoryPage(msg);
+                    }
+                    break;
+
                 case COLLAB_REQUEST:
                     // Ignore if sent by self (due to server echo)
                     if (msg.getSender().equals(username)) return;
@@ -632,106 +810,75 @@ public class ChatClientApp extends Application {
                     collabReq.setContentText("是否接受？");
                     collabReq.showAndWait().ifPresent(response -> {
                         if (response == ButtonType.OK) {
-                            client.sendCollabResponse(msg.getSender(), true);
                             // Start session
                             if (!chatSessions.containsKey(msg.getSender())) {
-                                ChatSession s = new ChatSession();
-                                // Add listener for collaboration
-                                String partner = msg.getSender();
-                                s.editorArea.textProperty().addListener((obs, oldVal, newVal) -> {
-                                    if (!s.isRemoteUpdate && s.isCollabActive) {
-                                        // Locking Logic
-                                        if (!s.isLockedByMe) {
-                                            s.isLockedByMe = true;
-                                            client.sendCollabLock(partner);
-                                        }
-                                        s.unlockTimer.playFromStart(); // Reset timer
-                                        
-                                        client.sendCollabUpdate(partner, newVal);
-                                    }
-                                });
-                                chatSessions.put(msg.getSender(), s);
+                                chatSessions.put(msg.getSender(), new ChatSession(msg.getSender()));
                             }
                             ChatSession s = chatSessions.get(msg.getSender());
+                            if (s.isCollabActive && s.collabRoom != null) {
+                                client.sendCollabEnd(s.collabRoom); // One room per conversation
+                            }
+                            client.sendCollabResponse(msg.getSender(), msg.getExtraInfo(), true);
                             s.enableCollab(true);
+                            s.collabRoom = msg.getExtraInfo();
+                            s.awaitSnapshot();
                             // Switch to view
                             currentRecipient = msg.getSender();
                             chatTitleLabel.setText("与 " + currentRecipient + " 聊天中");
                             userList.getSelectionModel().select(currentRecipient);
                             mainRoot.setCenter(s.getView());
+                            s.ensureHistory();
                             
                             collabBtn.setText("停止协作");
                             collabBtn.setStyle("-fx-background-color: #ff4444; -fx-text-fill: white;");
                         } else {
-                            client.sendCollabResponse(msg.getSender(), false);
+                            client.sendCollabResponse(msg.getSender(), msg.getExtraInfo(), false);
                         }
                     });
                     break;
 
                 case COLLAB_ACCEPT:
-                    Alert acceptAlert = new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 接受了协作请求！");
-                    acceptAlert.show();
-                    if (chatSessions.containsKey(msg.getSender())) {
-                        ChatSession s = chatSessions.get(msg.getSender());
-                        s.enableCollab(true);
-                        // Send current content
-                        client.sendCollabSync(msg.getSender(), s.editorArea.getText());
-                        
-                        if (msg.getSender().equals(currentRecipient)) {
-                            collabBtn.setText("停止协作");
-                            collabBtn.setStyle("-fx-background-color: #ff4444; -fx-text-fill: white;");
-                        }
-                    }
+                    new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 接受了协作请求！").show();
                     break;
 
                 case COLLAB_DENY:
                     new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 拒绝了协作请求。").show();
                     break;
                 
-                case COLLAB_END:
-                    if (chatSessions.containsKey(msg.getSender())) {
-                        ChatSession s = chatSessions.get(msg.getSender());
-                        s.enableCollab(false);
-                        new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 停止了协作。").show();
-                        
-                        if (msg.getSender().equals(currentRecipient)) {
-                            collabBtn.setText("代码协作");
-                            collabBtn.setStyle("");
-                        }
+                case COLLAB_END: {
+                    ChatSession s = findCollab(msg.getExtraInfo());
+                    if (s == null) break;
+                    if (!"CLOSED".equals(msg.getContent())) { // Others are still editing
+                        new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 离开了协作。").show();
+                        break;
                     }
-                    break;
-
-                case COLLAB_LOCK:
-                    if (chatSessions.containsKey(msg.getSender())) {
-                        ChatSession s = chatSessions.get(msg.getSender());
-                        s.editorArea.setEditable(false);
-                        s.statusLabel.setText(msg.getSender() + " 正在输入...");
+                    s.enableCollab(false);
+                    new Alert(Alert.AlertType.INFORMATION, msg.getSender() + " 停止了协作。").show();
+                    if (s.peer.equals(currentRecipient)) {
+                        collabBtn.setText("代码协作");
+                        collabBtn.setStyle("");
                     }
                     break;
+                }
 
-                case COLLAB_UNLOCK:
-                    if (chatSessions.containsKey(msg.getSender())) {
-                        ChatSession s = chatSessions.get(msg.getSender());
-                        s.editorArea.setEditable(true);
-                        s.statusLabel.setText("");
+                case COLLAB_SYNC: {
+                    ChatSession s = findCollab(msg.getExtraInfo());
+                    if (s == null && msg.getRecipient() != null) {
+                        s = chatSessions.get(msg.getRecipient()); // The room we just opened
+                    }
+                    if (s != null && s.isCollabActive && (s.collabRoom == null || s.collabRoom.equals(msg.getExtraInfo()))) {
+                        s.onSnapshot(msg);
+                    } else {
+                        client.sendCollabEnd(msg.getExtraInfo()); // Stopped before the room was ready
                     }
                     break;
+                }
 
-                case COLLAB_SYNC:
-                case COLLAB_UPDATE:
-                    if (chatSessions.containsKey(msg.getSender())) {
-                        ChatSession s = chatSessions.get(msg.getSender());
-                        if (!s.isCollabActive) s.enableCollab(true);
-                        
-                        s.isRemoteUpdate = true;
-                        int caret = s.editorArea.getCaretPosition();
-                        s.editorArea.setText(msg.getContent());
-                        if (caret <= msg.getContent().length()) {
-                            s.editorArea.positionCaret(caret);
-                        }
-                        s.isRemoteUpdate = false;
-                    }
+                case COLLAB_OP: {
+                    ChatSession s = findCollab(msg.getExtraInfo());
+                    if (s != null) s.onRemoteOp(msg);
                     break;
+                }
 
                 default:
                     break;
@@ -755,10 +902,10 @@ public class ChatClientApp extends Application {
         }
         
         if (!chatSessions.containsKey(targetSessionKey)) {
-            chatSessions.put(targetSessionKey, new ChatSession());
+            chatSessions.put(targetSessionKey, new ChatSession(targetSessionKey));
         }
         
-        addMessage(chatSessions.get(targetSessionKey), msg.getSender(), msg.getContent(), msg.getType(), msg.getFileData(), msg.getFileName());
+        addMessage(chatSessions.get(targetSessionKey), msg);
     }
 
     private void sendMessage() {
@@ -780,61 +927,10 @@ public class ChatClientApp extends Application {
         }
     }
 
-    private void addMessage(ChatSession session, String sender, String content, MessageType type, byte[] data, String fileName) {
-        boolean isSelf = sender.equals(username);
-        
-        HBox row = new HBox(10);
-        row.setPadding(new Insets(5, 0, 5, 0));
-        
-        // Avatar
-        StackPane avatar = createAvatar(sender, "#CCCCCC"); // Use default color for others for now
-        
-        // Click avatar to show info (only for others)
-        if (!isSelf) {
-            avatar.setOnMouseClicked(e -> showUserInfoPopup(sender));
-        }
-
-        VBox msgContainer = new VBox(2);
-        msgContainer.setMaxWidth(400);
-        msgContainer.getStyleClass().add("chat-bubble");
-        msgContainer.getStyleClass().add(isSelf ? "chat-bubble-self" : "chat-bubble-other");
-
-        Label senderLabel = new Label(sender);
-        senderLabel.getStyleClass().add("sender-name");
-        msgContainer.getChildren().add(senderLabel);
-
-        if (type == MessageType.IMAGE && data != null) {
-            try {
-                Image img = new Image(new ByteArrayInputStream(data));
-                ImageView imageView = new ImageView(img);
-                imageView.setFitWidth(200);
-                imageView.setPreserveRatio(true);
-                msgContainer.getChildren().add(imageView);
-            } catch (Exception e) { }
-        } else if (type == MessageType.FILE) {
-            Label fileLabel = new Label("文件: " + fileName);
-            fileLabel.setStyle("-fx-text-fill: blue; -fx-underline: true; -fx-cursor: hand;");
-            fileLabel.setOnMouseClicked(e -> saveFile(fileName, data));
-            msgContainer.getChildren().add(fileLabel);
-        } else {
-            Label contentLabel = new Label(content);
-            contentLabel.setWrapText(true);
-            contentLabel.getStyleClass().add(isSelf ? "chat-text-self" : "chat-text-other");
-            msgContainer.getChildren().add(contentLabel);
-        }
-        
-        if (isSelf) {
-            row.setAlignment(Pos.CENTER_RIGHT);
-            row.getChildren().addAll(msgContainer, avatar);
-        } else {
-            row.setAlignment(Pos.CENTER_LEFT);
-            row.getChildren().addAll(avatar, msgContainer);
-        }
-        
-        session.chatBox.getChildren().add(row);
-        session.scrollPane.setVvalue(1.0);
+    private void addMessage(ChatSession session, Message msg) {
+        session.append(msg);
     }
-    
+
     private StackPane createAvatar(String name, String colorHex) {
         StackPane stack = new StackPane();
         Circle circle = new Circle(20);
@@ -864,13 +960,22 @@ public class ChatClientApp extends Application {
         });
     }
 
-    private void saveFile(String fileName, byte[] data) {
+    private void saveFile(Transcript.Row msg) {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setInitialFileName(fileName);
+        fileChooser.setInitialFileName(msg.fileName);
         File file = fileChooser.showSaveDialog(primaryStage);
         if (file != null) {
             try {
-                Files.write(file.toPath(), data);
+                if (msg.fileData != null) {
+                    Files.write(file.toPath(), msg.fileData);
+                } else if (msg.blobId != null) {
+                    // Downloaded only now that somebody actually wants it
+                    client.fetchBlob(msg.blobId, blob -> {
+                        try {
+                            if (blob != null) Files.copy(blob.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        } catch (Exception e) { e.printStackTrace(); }
+                    });
+                }
             } catch (Exception e) { e.printStackTrace(); }
         }
     }
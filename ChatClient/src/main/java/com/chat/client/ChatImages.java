@@ -0,0 +1,174 @@
+package com.chat.client;
+
+import com.chat.client.Transcript.Row;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.stage.Stage;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The pictures of IMAGE messages, decoded off the JavaFX thread.
+ *
+ * In the transcript an image is a thumbnail, decoded straight to THUMB_WIDTH (200)
+ * pixels wide so the full-size bitmap never exists. Thumbnails are kept in an LRU cache
+ * of thumbnails.maxEntries (128) keyed by the SHA-256 of the picture: the blobId where
+ * there is one, otherwise the hash of the inline bytes, worked out once per row. A
+ * picture sent twice, or seen in two conversations, is decoded once. The full image is
+ * decoded only when the user opens it, and dropped with its window.
+ *
+ * thumbnail, loadThumbnail and open are called on the JavaFX thread, which is also the
+ * only one that touches the cache.
+ */
+final class ChatImages {
+    static final double THUMB_WIDTH = 200;
+    private static final int MAX_ENTRIES = Integer.getInteger("thumbnails.maxEntries", 128);
+
+    private static final Map<String, Image> thumbnails = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Hashes of pictures that came without a blobId
+    private static final Map<Row, String> hashes = new WeakHashMap<>();
+    // Thumbnails being made, with whoever is waiting for them
+    private static final Map<Row, List<Consumer<Image>>> pending = new HashMap<>();
+
+    private ChatImages() {
+    }
+
+    // The cached thumbnail of row, or null
+    static Image thumbnail(Row row) {
+        String key = key(row);
+        return key != null ? thumbnails.get(key) : null;
+    }
+
+    // Gives onReady row's thumbnail, decoding it in the background unless it is cached; null if it cannot be shown
+    static void loadThumbnail(ClientListener client, Row row, Consumer<Image> onReady) {
+        Image cached = thumbnail(row);
+        if (cached != null) {
+            onReady.accept(cached);
+            return;
+        }
+        List<Consumer<Image>> waiting = pending.get(row);
+        if (waiting != null) {
+            waiting.add(onReady);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(onReady);
+        pending.put(row, waiting);
+
+        if (key(row) == null && row.fileData != null) {
+            // Hashed first, the same picture may already be in the cache
+            byte[] data = row.fileData;
+            CompletableFuture.supplyAsync(() -> sha256(data)).whenComplete((hash, e) -> Platform.runLater(() -> {
+                Image known = null;
+                if (hash != null) {
+                    hashes.put(row, hash);
+                    known = thumbnails.get(hash);
+                }
+                if (known != null) {
+                    finish(row, known);
+                } else {
+                    decodeThumbnail(client, row);
+                }
+            }));
+        } else {
+            decodeThumbnail(client, row);
+        }
+    }
+
+    private static void decodeThumbnail(ClientListener client, Row row) {
+        if (row.fileData != null) {
+            byte[] data = row.fileData;
+            decode(row, () -> new Image(new ByteArrayInputStream(data), THUMB_WIDTH, 0, true, true));
+        } else if (row.blobId != null) {
+            // Only a reference, the bytes come from the server blob store
+            client.fetchBlob(row.blobId, file -> {
+                if (file == null) {
+                    Platform.runLater(() -> finish(row, null));
+                } else {
+                    decode(row, () -> new Image(file.toURI().toString(), THUMB_WIDTH, 0, true, true, false));
+                }
+            });
+        } else {
+            finish(row, null);
+        }
+    }
+
+    private static void decode(Row row, Supplier<Image> decoder) {
+        CompletableFuture.supplyAsync(decoder).whenComplete((image, e) -> Platform.runLater(() -> {
+            if (image == null || image.isError()) {
+                finish(row, null);
+                return;
+            }
+            String key = key(row);
+            if (key != null) {
+                thumbnails.put(key, image);
+            }
+            finish(row, image);
+        }));
+    }
+
+    private static void finish(Row row, Image image) {
+        List<Consumer<Image>> waiting = pending.remove(row);
+        if (waiting != null) {
+            for (Consumer<Image> onReady : waiting) {
+                onReady.accept(image);
+            }
+        }
+    }
+
+    private static String key(Row row) {
+        return row.blobId != null ? row.blobId : hashes.get(row);
+    }
+
+    // A window with the image at full size, decoded now and gone when the window closes
+    static void open(ClientListener client, Row row) {
+        ImageView view = new ImageView();
+        ScrollPane scroll = new ScrollPane(view);
+        scroll.setPannable(true);
+        Stage stage = new Stage();
+        stage.setTitle(row.fileName != null ? row.fileName : "图片");
+        stage.setScene(new Scene(scroll, 800, 600));
+        stage.show();
+
+        if (row.fileData != null) {
+            byte[] data = row.fileData;
+            CompletableFuture.supplyAsync(() -> new Image(new ByteArrayInputStream(data)))
+                    .thenAccept(image -> Platform.runLater(() -> view.setImage(image)));
+        } else if (row.blobId != null) {
+            client.fetchBlob(row.blobId, file -> Platform.runLater(() -> {
+                if (file != null) view.setImage(new Image(file.toURI().toString(), true));
+            }));
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return null; // Shown all the same, just not cached
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.chat.client;
 
+import com.chat.common.CollabSync;
+import com.chat.common.FileChunkInput;
 import com.chat.common.Message;
+import com.chat.common.MessageCodec;
+import com.chat.common.MessageFrameCodec;
 import com.chat.common.MessageType;
-import com.google.gson.Gson;
+import com.chat.common.WireFormat;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -10,13 +14,21 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
-import io.netty.handler.codec.MessageToMessageDecoder;
-import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.util.CharsetUtil;
+import io.netty.handler.stream.ChunkedWriteHandler;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class ClientListener {
@@ -27,6 +39,45 @@ public class ClientListener {
     private Consumer<Message> onMessageReceived;
     private EventLoopGroup group;
 
+    // Chunked transfers, only touched on the Netty event loop
+    private final FileReceiver fileReceiver = new FileReceiver();
+    private final Map<String, OutgoingTransfer> outgoing = new HashMap<>();
+    private final Map<String, BlobDownload> downloadsByTransfer = new HashMap<>();
+    private final Map<String, BlobDownload> downloadsByBlob = new HashMap<>();
+    // Files this client uploaded by blobId, read from any thread by fetchBlob
+    private final Map<String, File> sentFiles = new ConcurrentHashMap<>();
+
+    // Online users as of presenceVersion (-1 until the login snapshot), kept current from
+    // PRESENCE_JOIN/PRESENCE_LEAVE deltas. Only touched on the Netty event loop.
+    private final Set<String> online = new LinkedHashSet<>();
+    private long presenceVersion = -1;
+    private boolean presenceSyncRequested;
+
+    // Downloaded blobs, named by their SHA-256 so every copy of the same content is fetched once
+    private static final File BLOB_CACHE = new File(System.getProperty("java.io.tmpdir"), "lightchat-blobs");
+
+    private static class OutgoingTransfer {
+        final File file;
+        final Message header;
+        FileChunkInput input;
+        long acked;
+
+        OutgoingTransfer(File file, Message header) {
+            this.file = file;
+            this.header = header;
+        }
+    }
+
+    private static class BlobDownload {
+        final String blobId;
+        final String transferId = UUID.randomUUID().toString();
+        final List<Consumer<File>> callbacks = new ArrayList<>();
+
+        BlobDownload(String blobId) {
+            this.blobId = blobId;
+        }
+    }
+
     public ClientListener(String host, int port, Consumer<Message> onMessageReceived) {
         this.host = host;
         this.port = port;
@@ -45,21 +96,9 @@ public class ClientListener {
                      ch.pipeline().addLast(
                              new LengthFieldBasedFrameDecoder(10485760, 0, 4, 0, 4),
                              new LengthFieldPrepender(4),
-                             new StringDecoder(CharsetUtil.UTF_8),
-                             new StringEncoder(CharsetUtil.UTF_8),
-                             new MessageToMessageEncoder<Message>() {
-                                 @Override
-                                 protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) {
-                                     out.add(new Gson().toJson(msg));
-                                 }
-                             },
-                             new MessageToMessageDecoder<String>() {
-                                 @Override
-                                 protected void decode(ChannelHandlerContext ctx, String msg, List<Object> out) {
-                                     out.add(new Gson().fromJson(msg, Message.class));
-                                 }
-                             },
-                             new NettyClientHandler(onMessageReceived)
+                             new ChunkedWriteHandler(),
+                             new MessageFrameCodec(),
+                             new NettyClientHandler(ClientListener.this::onInbound)
                      );
                  }
              });
@@ -73,12 +112,274 @@ public class ClientListener {
         }
     }
 
+    // Transfer bookkeeping happens here on the event loop, everything else goes to the UI
+    private void onInbound(Message msg) {
+        if (msg.getType() == MessageType.FILE_CHUNK) {
+            try {
+                if (fileReceiver.onChunk(msg) != null) {
+                    finishDownload(downloadsByTransfer.get(msg.getTransferId()), true);
+                }
+            } catch (java.io.IOException e) {
+                e.printStackTrace();
+                finishDownload(downloadsByTransfer.get(msg.getTransferId()), false);
+            }
+            return;
+        }
+        if (msg.getType() == MessageType.FILE_CHUNK_ACK) {
+            onChunkAck(msg);
+            return;
+        }
+        if (msg.getType() == MessageType.UPDATE_USERS || msg.getType() == MessageType.PRESENCE_JOIN
+                || msg.getType() == MessageType.PRESENCE_LEAVE) {
+            // The UI always gets the whole list as UPDATE_USERS
+            if (onPresence(msg)) {
+                Message update = new Message();
+                update.setType(MessageType.UPDATE_USERS);
+                update.setOnlineUsers(new ArrayList<>(online));
+                onMessageReceived.accept(update);
+            }
+            return;
+        }
+        if (msg.getType() == MessageType.LOGIN_SUCCESS) {
+            online.clear();
+            presenceVersion = -1;
+            presenceSyncRequested = false;
+            // Continue transfers interrupted by a previous connection where the server left off
+            for (OutgoingTransfer t : outgoing.values()) {
+                startTransfer(t, t.acked);
+            }
+        }
+        onMessageReceived.accept(msg);
+    }
+
+    // Returns whether the online list changed
+    private boolean onPresence(Message msg) {
+        if (msg.getType() == MessageType.UPDATE_USERS) {
+            online.clear();
+            if (msg.getOnlineUsers() != null) {
+                online.addAll(msg.getOnlineUsers());
+            }
+            presenceVersion = msg.getSeq() != null ? msg.getSeq() : -1;
+            presenceSyncRequested = false;
+            return true;
+        }
+        if (msg.getSeq() == null || presenceVersion < 0 || msg.getSeq() <= presenceVersion) {
+            return false; // Snapshot still on its way, or already part of it
+        }
+        if (msg.getSeq() != presenceVersion + 1) {
+            // Missed a delta, only a fresh snapshot can fix the list
+            if (!presenceSyncRequested) {
+                presenceSyncRequested = true;
+                Message sync = new Message();
+                sync.setType(MessageType.PRESENCE_SYNC);
+                sync.setSender(username);
+                channel.writeAndFlush(sync);
+            }
+            return false;
+        }
+        if (msg.getOnlineUsers() != null) {
+            if (msg.getType() == MessageType.PRESENCE_JOIN) {
+                online.addAll(msg.getOnlineUsers());
+            } else {
+                online.removeAll(msg.getOnlineUsers());
+            }
+        }
+        presenceVersion = msg.getSeq();
+        return true;
+    }
+
+    private void onChunkAck(Message ack) {
+        BlobDownload d = downloadsByTransfer.get(ack.getTransferId());
+        if (d != null) {
+            // Only sent for downloads that finish without chunks or cannot be served
+            fileReceiver.cancel(d.transferId);
+            finishDownload(d, "DONE".equals(ack.getContent()));
+            return;
+        }
+
+        OutgoingTransfer t = outgoing.get(ack.getTransferId());
+        if (t == null || ack.getOffset() == null) return;
+
+        if ("DONE".equals(ack.getContent())) {
+            outgoing.remove(ack.getTransferId());
+            cancelInput(t); // The server may finish early when it already has the content
+            // The server does not echo chunked files back, show our own copy
+            Message own = new Message();
+            own.setType("IMAGE".equals(t.header.getExtraInfo()) ? MessageType.IMAGE : MessageType.FILE);
+            own.setSender(username);
+            own.setRecipient(t.header.getRecipient());
+            own.setFileName(t.header.getFileName());
+            own.setTotalSize(t.header.getTotalSize());
+            own.setBlobId(ack.getBlobId());
+            if (ack.getBlobId() != null) {
+                sentFiles.put(ack.getBlobId(), t.file); // Shown and saved from the original
+            }
+            onMessageReceived.accept(own);
+        } else if ("ABORT".equals(ack.getContent())) {
+            outgoing.remove(ack.getTransferId());
+            cancelInput(t);
+        } else if ("RESUME".equals(ack.getContent())) {
+            t.acked = ack.getOffset();
+            startTransfer(t, t.acked);
+        } else {
+            t.acked = ack.getOffset();
+        }
+    }
+
+    private void startTransfer(OutgoingTransfer t, long offset) {
+        cancelInput(t);
+        try {
+            t.input = new FileChunkInput(t.file, t.header, offset);
+            channel.writeAndFlush(t.input);
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            outgoing.remove(t.header.getTransferId());
+        }
+    }
+
+    private void cancelInput(OutgoingTransfer t) {
+        if (t.input != null) {
+            t.input.cancel();
+            t.input = null;
+            ChunkedWriteHandler chunked = channel.pipeline().get(ChunkedWriteHandler.class);
+            if (chunked != null) {
+                chunked.resumeTransfer();
+            }
+        }
+    }
+
+    /**
+     * Makes the blob referenced by a FILE/IMAGE message available locally. onReady is called
+     * with the file this client uploaded it from, the cached file, or null if the server
+     * cannot serve it. A blob that is already
+     * cached is handed over right away on the caller's thread, anything else on the Netty
+     * thread, so onReady must not assume either.
+     * Concurrent requests for the same blob share one download, and a partial download left
+     * by an earlier attempt is resumed with a range request.
+     */
+    public void fetchBlob(String blobId, Consumer<File> onReady) {
+        if (blobId == null || !blobId.matches("[0-9a-f]{64}")) {
+            onReady.accept(null);
+            return;
+        }
+        File sent = sentFiles.get(blobId);
+        if (sent != null && sent.isFile()) {
+            onReady.accept(sent);
+            return;
+        }
+        File cached = new File(BLOB_CACHE, blobId);
+        if (cached.isFile()) {
+            onReady.accept(cached);
+            return;
+        }
+        channel.eventLoop().execute(() -> {
+            BlobDownload pending = downloadsByBlob.get(blobId);
+            if (pending != null) {
+                pending.callbacks.add(onReady);
+                return;
+            }
+            if (cached.isFile()) {
+                onReady.accept(cached);
+                return;
+            }
+            BlobDownload d = new BlobDownload(blobId);
+            d.callbacks.add(onReady);
+            File part = new File(BLOB_CACHE, blobId + ".part");
+            long have = part.length();
+            try {
+                BLOB_CACHE.mkdirs();
+                fileReceiver.expect(d.transferId, part, have);
+            } catch (java.io.IOException e) {
+                e.printStackTrace();
+                onReady.accept(null);
+                return;
+            }
+            downloadsByBlob.put(blobId, d);
+            downloadsByTransfer.put(d.transferId, d);
+
+            Message req = new Message();
+            req.setType(MessageType.BLOB_REQUEST);
+            req.setSender(username);
+            req.setTransferId(d.transferId);
+            req.setBlobId(blobId);
+            req.setOffset(have);
+            channel.writeAndFlush(req);
+        });
+    }
+
+    private void finishDownload(BlobDownload d, boolean success) {
+        if (d == null) return;
+        downloadsByTransfer.remove(d.transferId);
+        if (!success) {
+            completeDownload(d, null);
+            return;
+        }
+        // Checked off the event loop; later fetches of the blob keep joining d meanwhile
+        CompletableFuture.supplyAsync(() -> verifyDownload(d.blobId))
+                .thenAccept(result -> channel.eventLoop().execute(() -> completeDownload(d, result)));
+    }
+
+    private void completeDownload(BlobDownload d, File result) {
+        downloadsByBlob.remove(d.blobId);
+        for (Consumer<File> callback : d.callbacks) {
+            callback.accept(result);
+        }
+    }
+
+    // Moves a finished .part into the cache if it hashes to blobId, and throws it away if not,
+    // since a resumed or truncated download would otherwise be served from the cache for good
+    private static File verifyDownload(String blobId) {
+        File part = new File(BLOB_CACHE, blobId + ".part");
+        if (!blobId.equals(sha256(part))) {
+            System.err.println("Discarding download of blob " + blobId + ", its content does not match");
+            part.delete();
+            return null;
+        }
+        File cached = new File(BLOB_CACHE, blobId);
+        try {
+            Files.move(part.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return cached;
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Puts bytes that came inline with a message into the blob cache, where fetchBlob finds
+     * them like a download. Returns their blobId, or null if they could not be written.
+     * Blocking, so not for the JavaFX or the Netty thread.
+     */
+    public String cacheBlob(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            String blobId = hex.toString();
+            File cached = new File(BLOB_CACHE, blobId);
+            if (!cached.isFile()) {
+                BLOB_CACHE.mkdirs();
+                File tmp = File.createTempFile(blobId, ".inline", BLOB_CACHE);
+                Files.write(tmp.toPath(), data);
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return blobId;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     public void login(String username, String password) {
         this.username = username;
         Message msg = new Message();
         msg.setType(MessageType.LOGIN);
         msg.setSender(username);
         msg.setPassword(password);
+        // Offer binary frames, the server switches over if it supports them
+        msg.setExtraInfo(MessageCodec.CAPABILITY);
         channel.writeAndFlush(msg);
     }
 
@@ -123,10 +424,15 @@ public class ClientListener {
         channel.writeAndFlush(msg);
     }
     
-    public void requestAdminUserList() {
+    // One page of users whose name starts with prefix, filter "online", "banned" or null for
+    // everyone, after the given name (null for the first page)
+    public void requestAdminUserList(String prefix, String filter, String after) {
         Message msg = new Message();
         msg.setType(MessageType.ADMIN_GET_USERS);
         msg.setSender(username);
+        msg.setContent(prefix);
+        msg.setExtraInfo(filter);
+        msg.setRecipient(after);
         channel.writeAndFlush(msg);
     }
     
@@ -154,61 +460,67 @@ public class ClientListener {
         channel.writeAndFlush(msg);
     }
 
-    public void sendCollabRequest(String target) {
+    // Without a room this opens one on the server with text as the starting document
+    public void sendCollabRequest(String target, String room, String text) {
         Message msg = new Message();
         msg.setType(MessageType.COLLAB_REQUEST);
         msg.setSender(username);
         msg.setRecipient(target);
+        msg.setExtraInfo(room);
+        msg.setContent(text);
         channel.writeAndFlush(msg);
     }
 
-    public void sendCollabResponse(String target, boolean accept) {
+    public void sendCollabResponse(String target, String room, boolean accept) {
         Message msg = new Message();
         msg.setType(accept ? MessageType.COLLAB_ACCEPT : MessageType.COLLAB_DENY);
         msg.setSender(username);
         msg.setRecipient(target);
+        msg.setExtraInfo(room);
         channel.writeAndFlush(msg);
     }
 
-    public void sendCollabSync(String target, String content) {
+    // Asks the server for a fresh snapshot of the room
+    public void sendCollabSync(String room) {
         Message msg = new Message();
         msg.setType(MessageType.COLLAB_SYNC);
         msg.setSender(username);
-        msg.setRecipient(target);
-        msg.setContent(content);
+        msg.setExtraInfo(room);
         channel.writeAndFlush(msg);
     }
 
-    public void sendCollabUpdate(String target, String content) {
+    // The edits buffered in sync, if nothing is in flight; see CollabOutbox
+    public boolean sendCollabOp(CollabSync sync) {
         Message msg = new Message();
-        msg.setType(MessageType.COLLAB_UPDATE);
+        msg.setType(MessageType.COLLAB_OP);
         msg.setSender(username);
-        msg.setRecipient(target);
-        msg.setContent(content);
+        if (!sync.flush(msg)) {
+            return false;
+        }
         channel.writeAndFlush(msg);
+        return true;
     }
 
-    public void sendCollabEnd(String target) {
-        Message msg = new Message();
-        msg.setType(MessageType.COLLAB_END);
-        msg.setSender(username);
-        msg.setRecipient(target);
-        channel.writeAndFlush(msg);
+    // The outbound buffer is over its high water mark, the server is not keeping up
+    public boolean isBacklogged() {
+        return channel != null && !channel.isWritable();
     }
 
-    public void sendCollabLock(String target) {
+    public void sendCollabEnd(String room) {
         Message msg = new Message();
-        msg.setType(MessageType.COLLAB_LOCK);
+        msg.setType(MessageType.COLLAB_END);
         msg.setSender(username);
-        msg.setRecipient(target);
+        msg.setExtraInfo(room);
         channel.writeAndFlush(msg);
     }
 
-    public void sendCollabUnlock(String target) {
+    // Asks for the page of peer's conversation ("All" for the public room) older than beforeSeq
+    public void requestHistory(String peer, Long beforeSeq) {
         Message msg = new Message();
-        msg.setType(MessageType.COLLAB_UNLOCK);
+        msg.setType(MessageType.HISTORY_REQUEST);
         msg.setSender(username);
-        msg.setRecipient(target);
+        msg.setRecipient(peer);
+        msg.setSeq(beforeSeq);
         channel.writeAndFlush(msg);
     }
 
@@ -231,6 +543,29 @@ public class ClientListener {
 
     public void sendFile(java.io.File file, String recipient) {
         if (channel != null && channel.isActive()) {
+            String fileName = file.getName().toLowerCase();
+            boolean isImage = fileName.endsWith(".png") || fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".gif");
+
+            // Stream in chunks when the server speaks binary, old servers get the whole file in one frame
+            if (MessageFrameCodec.getWireFormat(channel) == WireFormat.BINARY && file.length() > 0) {
+                Message header = new Message();
+                header.setType(MessageType.FILE_CHUNK);
+                header.setSender(username);
+                header.setRecipient(recipient);
+                header.setFileName(file.getName());
+                header.setTransferId(UUID.randomUUID().toString());
+                header.setTotalSize(file.length());
+                header.setExtraInfo(isImage ? "IMAGE" : "FILE");
+                OutgoingTransfer t = new OutgoingTransfer(file, header);
+                // Hash first so the server can skip the upload when it already stores this content
+                CompletableFuture.supplyAsync(() -> sha256(file)).thenAccept(hash -> channel.eventLoop().execute(() -> {
+                    header.setBlobId(hash);
+                    outgoing.put(header.getTransferId(), t);
+                    startTransfer(t, 0);
+                }));
+                return;
+            }
+
             try {
                 byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
                 Message msg = new Message();
@@ -239,8 +574,7 @@ public class ClientListener {
                 msg.setFileName(file.getName());
                 msg.setFileData(bytes);
                 
-                String fileName = file.getName().toLowerCase();
-                if (fileName.endsWith(".png") || fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".gif")) {
+                if (isImage) {
                     msg.setType(MessageType.IMAGE);
                 } else {
                     msg.setType(MessageType.FILE);
@@ -253,12 +587,31 @@ public class ClientListener {
         }
     }
 
+    private static String sha256(File file) {
+        try (java.io.InputStream in = new java.io.FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return null; // Just means no dedup, the upload itself will still work
+        }
+    }
+
     public void disconnect() {
         if (channel != null) {
             Message msg = new Message();
             msg.setType(MessageType.LOGOUT);
             msg.setSender(username);
             channel.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+            channel.eventLoop().execute(fileReceiver::close);
         }
         if (group != null) {
             group.shutdownGracefully();
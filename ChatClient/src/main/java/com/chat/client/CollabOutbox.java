@@ -0,0 +1,92 @@
+package com.chat.client;
+
+import com.chat.common.CollabSync;
+import com.chat.common.Message;
+import com.chat.common.TextOperation;
+import javafx.animation.PauseTransition;
+import javafx.util.Duration;
+
+/**
+ * Paces the COLLAB_OPs of one shared editor, so fast typing is not a frame per key.
+ *
+ * Each change of the text is composed into CollabSync's buffer. The buffer goes out once
+ * a window has passed since its first change and the previous frame has been
+ * acknowledged; a burst of typing becomes one frame per window, and never more than
+ * one is in flight. The window is half the smoothed round trip of those acks, clamped
+ * to collab.minWindowMs (30) and collab.maxWindowMs (250), and doubles while the
+ * connection's outbound buffer is over its high water mark. A slow link thus gets
+ * fewer, larger frames, and a fast one still shows the other side each word as typed.
+ *
+ * Only used on the JavaFX thread.
+ */
+final class CollabOutbox {
+    private static final long MIN_WINDOW_MS = Long.getLong("collab.minWindowMs", 30);
+    private static final long MAX_WINDOW_MS = Long.getLong("collab.maxWindowMs", 250);
+    private static final double RTT_WEIGHT = 0.2; // Of each new sample in the average
+
+    private final ClientListener client;
+    private final CollabSync sync;
+    private final PauseTransition timer = new PauseTransition();
+    private long firstEditNanos; // Of what is in the buffer, 0 when it is empty
+    private long sentNanos; // Of the frame in flight, 0 when there is none
+    private double rttMs = -1;
+
+    CollabOutbox(ClientListener client, CollabSync sync) {
+        this.client = client;
+        this.sync = sync;
+        timer.setOnFinished(e -> flush());
+    }
+
+    CollabSync sync() {
+        return sync;
+    }
+
+    // A change already made to the editor
+    void edit(TextOperation op) {
+        if (op.isNoop()) return;
+        sync.local(op);
+        if (firstEditNanos == 0) {
+            firstEditNanos = System.nanoTime();
+            schedule(window());
+        }
+    }
+
+    void onAck(Message ack) {
+        sync.ack(ack);
+        double sample = (System.nanoTime() - sentNanos) / 1e6;
+        rttMs = rttMs < 0 ? sample : rttMs + RTT_WEIGHT * (sample - rttMs);
+        sentNanos = 0;
+        if (sync.hasBuffered()) {
+            schedule(window() - (System.nanoTime() - firstEditNanos) / 1_000_000);
+        }
+    }
+
+    void stop() {
+        timer.stop();
+    }
+
+    private long window() {
+        long window = rttMs < 0 ? MIN_WINDOW_MS : (long) (rttMs / 2);
+        window = Math.max(MIN_WINDOW_MS, Math.min(MAX_WINDOW_MS, window));
+        return client.isBacklogged() ? Math.min(MAX_WINDOW_MS, window * 2) : window;
+    }
+
+    private void schedule(long delayMs) {
+        timer.stop();
+        if (delayMs <= 0) {
+            flush();
+            return;
+        }
+        timer.setDuration(Duration.millis(delayMs));
+        timer.playFromStart();
+    }
+
+    // Sends the buffer unless a frame is in flight, then the ack sends it
+    private void flush() {
+        if (sync.inFlight() || !sync.hasBuffered()) return;
+        if (client.sendCollabOp(sync)) {
+            sentNanos = System.nanoTime();
+            firstEditNanos = 0;
+        }
+    }
+}
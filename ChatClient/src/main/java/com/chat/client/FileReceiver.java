@@ -0,0 +1,84 @@
+package com.chat.client;
+
+import com.chat.common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes incoming FILE_CHUNK streams straight to disk instead of holding them in memory.
+ * Only transfers announced with {@link #expect} are accepted. Runs on the Netty event loop.
+ */
+public class FileReceiver {
+    private final Map<String, Spool> spools = new HashMap<>();
+
+    private static class Spool {
+        final File file;
+        final FileChannel channel;
+        long received;
+
+        Spool(File file, long offset) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.received = offset;
+        }
+    }
+
+    // Chunks for transferId will be written into target, which already holds the first offset bytes
+    public void expect(String transferId, File target, long offset) throws IOException {
+        spools.put(transferId, new Spool(target, offset));
+    }
+
+    // Returns the finished file once the last chunk is written, null while more are to come.
+    // Throws if the transfer cannot complete, after dropping it.
+    public File onChunk(Message chunk) throws IOException {
+        String id = chunk.getTransferId();
+        Spool spool = id != null ? spools.get(id) : null;
+        if (spool == null || chunk.getOffset() == null || chunk.getTotalSize() == null || chunk.getFileData() == null) {
+            return null;
+        }
+        try {
+            if (chunk.getOffset() > spool.received) {
+                throw new IOException("Missed part of transfer " + id + " before offset " + chunk.getOffset());
+            }
+            ByteBuffer data = ByteBuffer.wrap(chunk.getFileData());
+            long pos = chunk.getOffset();
+            while (data.hasRemaining()) {
+                pos += spool.channel.write(data, pos);
+            }
+            spool.received = Math.max(spool.received, pos);
+
+            if (spool.received < chunk.getTotalSize()) {
+                return null;
+            }
+            spools.remove(id);
+            spool.channel.close();
+            return spool.file;
+        } catch (IOException e) {
+            cancel(id);
+            throw e;
+        }
+    }
+
+    // Stops accepting chunks for transferId, keeping what was written so far
+    public void cancel(String transferId) {
+        Spool spool = spools.remove(transferId);
+        if (spool != null) {
+            try {
+                spool.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void close() {
+        for (String id : new HashMap<>(spools).keySet()) {
+            cancel(id);
+        }
+    }
+}
@@ -1,25 +1,19 @@
 package com.chat.client;
 
 import com.chat.common.Message;
-import com.chat.common.MessageType;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 
 public class PrivateChatWindow {
     private Stage stage;
-    private VBox chatBox;
-    private ScrollPane chatScroll;
+    private Transcript transcript;
     private TextField inputField;
     private ClientListener client;
     private String targetUser;
@@ -39,11 +33,9 @@ public class PrivateChatWindow {
         BorderPane root = new BorderPane();
         root.setPadding(new Insets(10));
 
-        chatBox = new VBox(5);
-        chatBox.setPadding(new Insets(10));
-        chatScroll = new ScrollPane(chatBox);
-        chatScroll.setFitToWidth(true);
-        root.setCenter(chatScroll);
+        transcript = new Transcript(client, currentUser, 350, null, this::saveFile,
+                before -> client.requestHistory(targetUser, before));
+        root.setCenter(transcript.getView());
 
         inputField = new TextField();
         inputField.setPrefWidth(200);
@@ -75,79 +67,37 @@ public class PrivateChatWindow {
             stage.show();
         }
         stage.toFront();
+        transcript.ensureHistory();
     }
 
     public void appendMessage(Message msg) {
-        boolean isSelf = msg.getSender().equals(currentUser);
-        
-        VBox msgContainer = new VBox(2);
-        msgContainer.setMaxWidth(350);
-        
-        // Bubble style
-        msgContainer.getStyleClass().add("chat-bubble");
-        if (isSelf) {
-            msgContainer.getStyleClass().add("chat-bubble-self");
-            msgContainer.setAlignment(javafx.geometry.Pos.TOP_RIGHT);
-        } else {
-            msgContainer.getStyleClass().add("chat-bubble-other");
-            msgContainer.setAlignment(javafx.geometry.Pos.TOP_LEFT);
-        }
-
-        Label senderLabel = new Label(msg.getSender());
-        senderLabel.getStyleClass().add("sender-name");
-        msgContainer.getChildren().add(senderLabel);
+        transcript.append(msg);
+    }
 
-        if (msg.getType() == MessageType.IMAGE && msg.getFileData() != null) {
-            try {
-                Image img = new Image(new ByteArrayInputStream(msg.getFileData()));
-                ImageView imageView = new ImageView(img);
-                imageView.setFitWidth(200);
-                imageView.setPreserveRatio(true);
-                msgContainer.getChildren().add(imageView);
-            } catch (Exception e) {
-                msgContainer.getChildren().add(new Label("[图片加载失败]"));
-            }
-        } else if (msg.getType() == MessageType.FILE) {
-            Label fileLabel = new Label("文件: " + msg.getFileName() + " (点击下载)");
-            fileLabel.setStyle("-fx-text-fill: blue; -fx-underline: true; -fx-cursor: hand;");
-            fileLabel.setOnMouseClicked(e -> saveFile(msg.getFileName(), msg.getFileData()));
-            msgContainer.getChildren().add(fileLabel);
-        } else {
-            Label contentLabel = new Label(msg.getContent());
-            contentLabel.setWrapText(true);
-            if (isSelf) {
-                contentLabel.getStyleClass().add("chat-text-self");
-            } else {
-                contentLabel.getStyleClass().add("chat-text-other");
-            }
-            msgContainer.getChildren().add(contentLabel);
-        }
-        
-        HBox row = new HBox();
-        row.setPadding(new Insets(5, 0, 5, 0));
-        if (isSelf) {
-            row.setAlignment(javafx.geometry.Pos.CENTER_RIGHT);
-            row.getChildren().add(msgContainer);
-        } else {
-            row.setAlignment(javafx.geometry.Pos.CENTER_LEFT);
-            row.getChildren().add(msgContainer);
-        }
-        
-        chatBox.getChildren().add(row);
-        chatScroll.setVvalue(1.0);
+    // The HISTORY_PAGE answers for this conversation
+    public void onHistoryPage(Message page) {
+        transcript.onHistoryPage(page);
     }
 
-    private void saveFile(String fileName, byte[] data) {
-        if (data == null) return;
+    private void saveFile(Transcript.Row msg) {
+        if (msg.fileData == null && msg.blobId == null) return;
         
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("保存文件");
-        fileChooser.setInitialFileName(fileName);
+        fileChooser.setInitialFileName(msg.fileName);
         File file = fileChooser.showSaveDialog(stage);
         
         if (file != null) {
             try {
-                java.nio.file.Files.write(file.toPath(), data);
+                if (msg.fileData != null) {
+                    java.nio.file.Files.write(file.toPath(), msg.fileData);
+                } else {
+                    client.fetchBlob(msg.blobId, blob -> {
+                        try {
+                            if (blob != null) java.nio.file.Files.copy(blob.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                        } catch (Exception ex) { ex.printStackTrace(); }
+                    });
+                }
                 Alert alert = new Alert(Alert.AlertType.INFORMATION);
                 alert.setTitle("成功");
                 alert.setHeaderText(null);
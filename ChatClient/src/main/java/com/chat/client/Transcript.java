@@ -0,0 +1,331 @@
+package com.chat.client;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Circle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The messages of one conversation, shown as chat bubbles in a ListView.
+ *
+ * The list holds a small Row per message and nothing else; only the rows on screen have
+ * nodes, one bubble layout per cell that is refilled as the cell is reused for another
+ * row. Inline file bytes are written to the blob cache once and the row keeps just the
+ * blobId, so a row never holds more than a few strings.
+ *
+ * The list never keeps more than transcript.maxMessages (500) rows. Rows below the
+ * viewport go first, then rows above it. Both come back from the server's history:
+ * scrolling to the top fetches the page before the oldest row, scrolling to the bottom
+ * after newer rows were dropped reloads the newest page. New messages that arrive while
+ * the bottom is dropped are left to that reload.
+ *
+ * Only used on the JavaFX thread.
+ */
+final class Transcript {
+    private static final int MAX_MESSAGES = Integer.getInteger("transcript.maxMessages", 500);
+
+    private final ClientListener client;
+    private final String self;
+    private final double bubbleWidth;
+    private final Consumer<String> onAvatarClick; // null: rows without avatars
+    private final Consumer<Row> onFileClick;
+    private final Consumer<Long> requestHistory; // Asks for the page before a seq, null for the newest page
+    private final ObservableList<Row> rows = FXCollections.observableArrayList();
+    private final ListView<Row> view = new ListView<>(rows);
+    private VirtualFlow<?> flow; // Known once the skin is
+
+    // History paging, oldestSeq is the cursor for the next older page
+    private Long oldestSeq;
+    private boolean historyRequested = false;
+    private boolean historyLoading = false;
+    private boolean historyExhausted = false;
+    private boolean newerDropped = false;
+
+    Transcript(ClientListener client, String self, double bubbleWidth,
+               Consumer<String> onAvatarClick, Consumer<Row> onFileClick, Consumer<Long> requestHistory) {
+        this.client = client;
+        this.self = self;
+        this.bubbleWidth = bubbleWidth;
+        this.onAvatarClick = onAvatarClick;
+        this.onFileClick = onFileClick;
+        this.requestHistory = requestHistory;
+        view.getStyleClass().add("transcript");
+        view.setFocusTraversable(false);
+        view.setCellFactory(v -> new BubbleCell());
+        view.skinProperty().addListener((obs, oldSkin, skin) -> {
+            flow = (VirtualFlow<?>) view.lookup(".virtual-flow");
+            if (flow != null) {
+                flow.positionProperty().addListener((o, oldVal, newVal) -> {
+                    if (newVal.doubleValue() <= 0 && oldVal.doubleValue() > newVal.doubleValue()) {
+                        loadOlderHistory();
+                    } else if (newVal.doubleValue() >= 1 && oldVal.doubleValue() < newVal.doubleValue() && newerDropped) {
+                        reloadNewest();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * What the list keeps of a message. The file fields change once, when inline bytes
+     * have been moved to the blob cache.
+     */
+    static final class Row {
+        final MessageType type;
+        final String sender;
+        final String content;
+        final String fileName;
+        final Long seq;
+        String blobId;
+        byte[] fileData; // Only until it is in the blob cache
+
+        private Row(Message msg) {
+            type = msg.getType();
+            sender = msg.getSender();
+            content = msg.getContent();
+            fileName = msg.getFileName();
+            seq = msg.getSeq();
+            blobId = msg.getBlobId();
+            fileData = msg.getFileData();
+        }
+    }
+
+    ListView<Row> getView() {
+        return view;
+    }
+
+    boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    // First page, once, when the conversation is first shown
+    void ensureHistory() {
+        if (!historyRequested) {
+            loadOlderHistory();
+        }
+    }
+
+    private void loadOlderHistory() {
+        if (historyLoading || historyExhausted) return;
+        historyRequested = true;
+        historyLoading = true;
+        requestHistory.accept(oldestSeq);
+    }
+
+    // Starts over from the newest page, for the rows dropped from the bottom
+    private void reloadNewest() {
+        if (historyLoading) return;
+        rows.clear();
+        oldestSeq = null;
+        historyExhausted = false;
+        newerDropped = false;
+        loadOlderHistory();
+    }
+
+    // Adds a new message at the bottom
+    void append(Message msg) {
+        if (newerDropped) return; // Comes back with the newest page
+        int[] visible = visibleRange();
+        boolean following = visible == null || visible[1] >= rows.size() - 1;
+        rows.add(row(msg));
+        if (msg.getSeq() != null && oldestSeq == null) {
+            oldestSeq = msg.getSeq();
+        }
+        if (following || self.equals(msg.getSender())) {
+            trim(rows.size() - 1, rows.size() - 1);
+            view.scrollTo(rows.size() - 1);
+        } else if (visible != null) {
+            trim(visible[0], visible[1]);
+        }
+    }
+
+    // Adds a history page (oldest first) above the rest, leaving what was on screen in place
+    void onHistoryPage(Message page) {
+        historyLoading = false;
+        if (page.getSeq() == null) {
+            historyExhausted = true;
+        }
+        List<Row> older = new ArrayList<>();
+        Long before = oldestSeq;
+        if (page.getHistory() != null) {
+            for (Message m : page.getHistory()) {
+                if (before != null && m.getSeq() != null && m.getSeq() >= before) continue;
+                older.add(row(m));
+                if (m.getSeq() != null && (oldestSeq == null || m.getSeq() < oldestSeq)) {
+                    oldestSeq = m.getSeq();
+                }
+            }
+        }
+        if (older.isEmpty()) return;
+        int[] visible = visibleRange();
+        boolean wasEmpty = rows.isEmpty();
+        rows.addAll(0, older);
+        if (wasEmpty || visible == null) {
+            trim(rows.size() - 1, rows.size() - 1);
+            view.scrollTo(rows.size() - 1);
+        } else {
+            // The new page is what the user scrolled up to see
+            trim(0, visible[1] + older.size());
+            view.scrollTo(older.size());
+        }
+    }
+
+    // Drops rows outside first..last until the cap holds, those below first
+    private void trim(int first, int last) {
+        int excess = rows.size() - MAX_MESSAGES;
+        if (excess <= 0) return;
+        int below = Math.min(excess, rows.size() - 1 - last);
+        if (below > 0) {
+            rows.remove(rows.size() - below, rows.size());
+            newerDropped = true;
+            excess -= below;
+        }
+        int above = Math.min(excess, first);
+        if (above > 0) {
+            rows.remove(0, above);
+            oldestSeq = null;
+            for (Row r : rows) {
+                if (r.seq != null) {
+                    oldestSeq = r.seq;
+                    break;
+                }
+            }
+            historyExhausted = false;
+        }
+    }
+
+    private Row row(Message msg) {
+        Row row = new Row(msg);
+        if (row.fileData != null) {
+            byte[] data = row.fileData;
+            CompletableFuture.supplyAsync(() -> client.cacheBlob(data)).thenAccept(blobId -> Platform.runLater(() -> {
+                if (blobId != null) {
+                    row.blobId = blobId;
+                    row.fileData = null;
+                }
+            }));
+        }
+        return row;
+    }
+
+    // Indexes of the first and last row on screen, null if nothing is laid out yet
+    private int[] visibleRange() {
+        IndexedCell<?> first = flow != null ? flow.getFirstVisibleCell() : null;
+        IndexedCell<?> last = flow != null ? flow.getLastVisibleCell() : null;
+        if (first == null || last == null) return null;
+        return new int[] {first.getIndex(), last.getIndex()};
+    }
+
+    // One bubble layout, filled with whichever message the cell shows at the moment
+    private final class BubbleCell extends ListCell<Row> {
+        private final HBox row = new HBox(10);
+        private final StackPane avatar = new StackPane();
+        private final Label initial = new Label();
+        private final VBox bubble = new VBox(2);
+        private final Label senderLabel = new Label();
+        private final Label contentLabel = new Label();
+        private final Label fileLabel = new Label();
+        private final ImageView imageView = new ImageView();
+
+        BubbleCell() {
+            setPrefWidth(0); // Rows follow the list's width instead of widening it
+            row.setPadding(new Insets(5, 0, 5, 0));
+
+            Circle circle = new Circle(20);
+            circle.setFill(Color.web("#CCCCCC")); // Default color for others for now
+            circle.setStroke(Color.WHITE);
+            initial.setStyle("-fx-text-fill: white; -fx-font-weight: bold;");
+            avatar.getChildren().addAll(circle, initial);
+            avatar.setOnMouseClicked(e -> {
+                Row r = getItem();
+                if (r != null && onAvatarClick != null && !self.equals(r.sender)) {
+                    onAvatarClick.accept(r.sender);
+                }
+            });
+
+            bubble.setMaxWidth(bubbleWidth);
+            bubble.getStyleClass().add("chat-bubble");
+            senderLabel.getStyleClass().add("sender-name");
+            contentLabel.setWrapText(true);
+            fileLabel.setStyle("-fx-text-fill: blue; -fx-underline: true; -fx-cursor: hand;");
+            fileLabel.setOnMouseClicked(e -> {
+                if (getItem() != null) onFileClick.accept(getItem());
+            });
+            imageView.setStyle("-fx-cursor: hand;");
+            imageView.setOnMouseClicked(e -> {
+                if (getItem() != null) ChatImages.open(client, getItem());
+            });
+        }
+
+        @Override
+        protected void updateItem(Row item, boolean empty) {
+            super.updateItem(item, empty);
+            setText(null);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            boolean isSelf = self.equals(item.sender);
+            String sender = item.sender;
+            initial.setText(sender.isEmpty() ? "?" : sender.substring(0, 1).toUpperCase());
+            senderLabel.setText(sender);
+            bubble.getStyleClass().setAll("chat-bubble", isSelf ? "chat-bubble-self" : "chat-bubble-other");
+            bubble.getChildren().setAll(senderLabel);
+
+            if (item.type == MessageType.IMAGE) {
+                Image thumbnail = ChatImages.thumbnail(item);
+                imageView.setImage(thumbnail);
+                bubble.getChildren().add(imageView);
+                if (thumbnail == null) {
+                    ChatImages.loadThumbnail(client, item, loaded -> {
+                        if (getItem() != item) return; // The cell shows another row by now
+                        if (loaded != null) {
+                            imageView.setImage(loaded);
+                        } else {
+                            contentLabel.setText("[图片加载失败]");
+                            contentLabel.getStyleClass().setAll("label", isSelf ? "chat-text-self" : "chat-text-other");
+                            bubble.getChildren().setAll(senderLabel, contentLabel);
+                        }
+                    });
+                }
+            } else if (item.type == MessageType.FILE) {
+                fileLabel.setText("文件: " + item.fileName);
+                bubble.getChildren().add(fileLabel);
+            } else {
+                contentLabel.setText(item.content);
+                contentLabel.getStyleClass().setAll("label", isSelf ? "chat-text-self" : "chat-text-other");
+                bubble.getChildren().add(contentLabel);
+            }
+
+            if (onAvatarClick == null) {
+                row.getChildren().setAll(bubble);
+            } else if (isSelf) {
+                row.getChildren().setAll(bubble, avatar);
+            } else {
+                row.getChildren().setAll(avatar, bubble);
+            }
+            row.setAlignment(isSelf ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+            setGraphic(row);
+        }
+    }
+}
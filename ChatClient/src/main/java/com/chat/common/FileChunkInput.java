@@ -0,0 +1,94 @@
+package com.chat.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a file region as binary FILE_CHUNK frames for a ChunkedWriteHandler.
+ *
+ * Every frame is the encoded header message (with its offset updated) followed by the
+ * bytes ChunkedNioFile read straight from the FileChannel, joined in a CompositeByteBuf
+ * so the file data is never copied into a byte[]. Only valid on BINARY channels.
+ */
+public class FileChunkInput implements ChunkedInput<ByteBuf> {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Message header;
+    private final ChunkedNioFile file;
+    private volatile boolean cancelled;
+
+    public FileChunkInput(File source, Message header, long offset) throws IOException {
+        this(FileChannel.open(source.toPath(), StandardOpenOption.READ), header, offset, -1);
+    }
+
+    // length < 0 means "up to the end of the file"
+    public FileChunkInput(FileChannel channel, Message header, long offset, long length) throws IOException {
+        this.header = header;
+        long available = Math.max(0, channel.size() - offset);
+        this.file = new ChunkedNioFile(channel, offset, length < 0 ? available : Math.min(length, available), CHUNK_SIZE);
+    }
+
+    // Stops the transfer after the chunk currently in flight
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return cancelled || file.isEndOfInput();
+    }
+
+    @Override
+    public void close() throws Exception {
+        file.close();
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (cancelled) {
+            return null;
+        }
+        long offset = file.currentOffset();
+        ByteBuf data = file.readChunk(allocator);
+        if (data == null) {
+            return null;
+        }
+        ByteBuf head = allocator.buffer(128);
+        try {
+            header.setOffset(offset);
+            MessageCodec.encodeHeader(header, data.readableBytes(), head);
+        } catch (RuntimeException e) {
+            head.release();
+            data.release();
+            throw e;
+        }
+        CompositeByteBuf frame = allocator.compositeBuffer(2);
+        frame.addComponents(true, head, data);
+        return frame;
+    }
+
+    @Override
+    public long length() {
+        return file.length();
+    }
+
+    @Override
+    public long progress() {
+        return file.progress();
+    }
+}
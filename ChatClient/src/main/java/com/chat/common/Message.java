@@ -15,6 +15,14 @@ public class Message implements Serializable {
     private String fileName;
     private String password; // For login/register
     private String extraInfo; // For generic string data (e.g. avatar color, status)
+    private String transferId; // FILE_CHUNK: identifies one file transfer
+    private Long offset; // FILE_CHUNK: byte offset of fileData, FILE_CHUNK_ACK: next expected offset
+    private Long totalSize; // FILE_CHUNK: size of the whole file
+    private String blobId; // FILE/IMAGE/BLOB_REQUEST: SHA-256 of the payload in the server blob store
+    private Long length; // BLOB_REQUEST: number of bytes wanted from offset, null means to the end; HISTORY_REQUEST, ADMIN_GET_USERS: page size
+    private Long seq; // Position in the server message log; HISTORY_REQUEST/HISTORY_PAGE: cursor, older pages lie below it; COLLAB_SYNC/COLLAB_OP: document revision
+    private Long timestamp; // When the server logged the message, epoch millis
+    private List<Message> history; // HISTORY_PAGE: messages of one page, oldest first
 
     public Message() {}
 
@@ -42,4 +50,23 @@ public class Message implements Serializable {
     public void setPassword(String password) { this.password = password; }
     public String getExtraInfo() { return extraInfo; }
     public void setExtraInfo(String extraInfo) { this.extraInfo = extraInfo; }
+    public String getTransferId() { return transferId; }
+    public void setTransferId(String transferId) { this.transferId = transferId; }
+    public Long getOffset() { return offset; }
+    public void setOffset(Long offset) { this.offset = offset; }
+    public Long getTotalSize() { return totalSize; }
+    public void setTotalSize(Long totalSize) { this.totalSize = totalSize; }
+    public String getBlobId() { return blobId; }
+    public void setBlobId(String blobId) { this.blobId = blobId; }
+    public Long getLength() { return length; }
+    public void setLength(Long length) { this.length = length; }
+
+    public Long getSeq() { return seq; }
+    public void setSeq(Long seq) { this.seq = seq; }
+
+    public Long getTimestamp() { return timestamp; }
+    public void setTimestamp(Long timestamp) { this.timestamp = timestamp; }
+
+    public List<Message> getHistory() { return history; }
+    public void setHistory(List<Message> history) { this.history = history; }
 }
@@ -31,5 +31,14 @@ public enum MessageType {
     COLLAB_UPDATE,
     COLLAB_END,
     COLLAB_LOCK,
-    COLLAB_UNLOCK
+    COLLAB_UNLOCK,
+    FILE_CHUNK,
+    FILE_CHUNK_ACK,
+    BLOB_REQUEST,
+    HISTORY_REQUEST,
+    HISTORY_PAGE,
+    PRESENCE_JOIN,
+    PRESENCE_LEAVE,
+    PRESENCE_SYNC,
+    COLLAB_OP
 }
@@ -0,0 +1,50 @@
+package com.chat.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Load generator settings from key=value arguments. config=file.properties loads a file
+ * first; arguments given on the command line win over it.
+ */
+final class LoadConfig {
+    private final Properties props = new Properties();
+
+    static LoadConfig parse(String[] args) throws IOException {
+        LoadConfig cfg = new LoadConfig();
+        Properties cli = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            cli.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+        }
+        String file = cli.getProperty("config");
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                cfg.props.load(in);
+            }
+        }
+        cfg.props.putAll(cli);
+        return cfg;
+    }
+
+    String getString(String key, String def) {
+        String value = props.getProperty(key);
+        return value != null ? value.trim() : def;
+    }
+
+    int getInt(String key, int def) {
+        String value = getString(key, null);
+        return value != null ? Integer.parseInt(value) : def;
+    }
+
+    double getDouble(String key, double def) {
+        String value = getString(key, null);
+        return value != null ? Double.parseDouble(value) : def;
+    }
+}
@@ -0,0 +1,304 @@
+package com.chat.loadgen;
+
+import com.chat.common.MessageFrameCodec;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for the chat server.
+ *
+ *   java -jar target/loadgen.jar users=2000 duration=120 rate.private=2000
+ *
+ * Users are named prefix0..prefixN-1 and paired up (0 with 1, 2 with 3, ...) as friends.
+ * After they have registered, logged in and befriended their partner, every operation
+ * runs on its own open-loop schedule at a fixed rate, with a random sender each time:
+ *   rate.chatAll  CHAT_ALL messages per second (each one reaches every user)
+ *   rate.private  private messages per second to the sender's partner
+ *   rate.file     inline files of file.size bytes per second to the partner
+ *   rate.collab   COLLAB_OP edits per second in a collab room shared with the partner
+ * Latency is measured from the moment a message was scheduled to the moment it arrives,
+ * so a stalled sender or server cannot hide its backlog (coordinated omission).
+ *
+ * Other keys (defaults in parentheses): host (127.0.0.1), port (8888), users (1000),
+ * prefix (lg), password (pw), loginRate (200 per second), threads (0 = Netty default),
+ * warmup (10 s, results discarded), duration (60 s), report (5 s between interval lines),
+ * text.size (64 bytes of padding per chat message), collab.size (16 characters typed per edit),
+ * file.size (65536), histogramLog (file for HdrHistogram interval logs, off by default),
+ * config (a properties file with any of these).
+ */
+public class LoadGen {
+    private final LoadConfig cfg;
+    private final VirtualUser.Stats stats = new VirtualUser.Stats();
+    private final List<VirtualUser> users = new ArrayList<>();
+    // Pairs whose friendship is set up, as the index of their first user
+    private final List<Integer> readyPairs = new ArrayList<>();
+    private volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGen(LoadConfig.parse(args)).run();
+    }
+
+    LoadGen(LoadConfig cfg) {
+        this.cfg = cfg;
+    }
+
+    void run() throws Exception {
+        String host = cfg.getString("host", "127.0.0.1");
+        int port = cfg.getInt("port", 8888);
+        int userCount = cfg.getInt("users", 1000) & ~1; // Whole pairs only
+        String prefix = cfg.getString("prefix", "lg");
+        String password = cfg.getString("password", "pw");
+
+        EventLoopGroup group = new NioEventLoopGroup(cfg.getInt("threads", 0));
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+             .channel(NioSocketChannel.class)
+             .option(ChannelOption.TCP_NODELAY, true)
+             .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10_000);
+
+            for (int i = 0; i < userCount; i++) {
+                users.add(new VirtualUser(prefix + i, password, stats));
+            }
+            for (int i = 0; i < userCount; i += 2) {
+                users.get(i).partner = users.get(i + 1);
+                users.get(i + 1).partner = users.get(i);
+            }
+
+            System.out.println("Logging in " + userCount + " users on " + host + ":" + port);
+            logIn(b, host, port);
+            befriend();
+            System.out.println(readyPairs.size() + " pairs ready");
+            if (readyPairs.isEmpty()) {
+                return;
+            }
+            for (int first : readyPairs) {
+                users.get(first).startCollab();
+            }
+            drive();
+        } finally {
+            for (VirtualUser u : users) {
+                if (u.channel != null) u.channel.close();
+            }
+            group.shutdownGracefully();
+        }
+    }
+
+    // Connects, registers and logs in every user, loginRate per second
+    private void logIn(Bootstrap b, String host, int port) {
+        long period = (long) (1e9 / cfg.getDouble("loginRate", 200));
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < users.size(); i++) {
+            long scheduled = start + i * period;
+            sleepUntil(scheduled);
+            VirtualUser u = users.get(i);
+            ChannelFuture connect = b.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(
+                            new LengthFieldBasedFrameDecoder(10485760, 0, 4, 0, 4),
+                            new LengthFieldPrepender(4),
+                            new MessageFrameCodec(),
+                            u);
+                }
+            }).connect(host, port);
+            u.channel = connect.channel();
+            connect.addListener(f -> {
+                if (f.isSuccess()) {
+                    u.register();
+                } else {
+                    u.stats.login.failed.increment();
+                    u.registered.completeExceptionally(f.cause());
+                }
+            });
+            // A failed connect never becomes active, so nothing else would end loggedIn
+            u.registered.whenComplete((v, e) -> {
+                if (e != null) {
+                    u.loggedIn.completeExceptionally(e);
+                } else {
+                    u.login(scheduled);
+                }
+            });
+            done.add(u.loggedIn);
+        }
+        awaitAll(done, "login");
+        long failed = users.stream().filter(u -> !isLoggedIn(u)).count(); // Still pending counts too
+        System.out.println("Logged in " + (users.size() - failed) + ", failed " + failed);
+        System.out.println(stats.login.summary((System.nanoTime() - start) / 1e9));
+    }
+
+    private void befriend() {
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < users.size(); i += 2) {
+            VirtualUser first = users.get(i);
+            VirtualUser second = first.partner;
+            if (isLoggedIn(first) && isLoggedIn(second)) {
+                if (!first.befriended.isDone()) { // Friends from an earlier run come with the login
+                    first.befriend();
+                }
+                done.add(first.befriended);
+            }
+        }
+        awaitAll(done, "friend setup");
+        for (int i = 0; i < users.size(); i += 2) {
+            VirtualUser first = users.get(i);
+            if (first.befriended.isDone() && !first.befriended.isCompletedExceptionally()) {
+                readyPairs.add(i);
+            }
+        }
+    }
+
+    private static boolean isLoggedIn(VirtualUser u) {
+        return u.loggedIn.isDone() && !u.loggedIn.isCompletedExceptionally();
+    }
+
+    private static void awaitAll(List<CompletableFuture<Void>> futures, String what) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(2, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            // Individual failures are counted by the caller
+            if (futures.stream().anyMatch(f -> !f.isDone())) {
+                System.err.println("Timed out waiting for " + what);
+            }
+        }
+    }
+
+    private void drive() throws FileNotFoundException, InterruptedException {
+        long warmupNanos = TimeUnit.SECONDS.toNanos(cfg.getInt("warmup", 10));
+        long durationNanos = TimeUnit.SECONDS.toNanos(cfg.getInt("duration", 60));
+        int reportSeconds = Math.max(1, cfg.getInt("report", 5));
+
+        String text = pad(cfg.getInt("text.size", 64));
+        String typed = pad(cfg.getInt("collab.size", 16));
+        byte[] file = new byte[cfg.getInt("file.size", 65536)];
+        ThreadLocalRandom.current().nextBytes(file);
+        AtomicLong fileCounter = new AtomicLong();
+
+        long start = System.nanoTime();
+        long end = start + warmupNanos + durationNanos;
+        List<Thread> pacers = new ArrayList<>();
+        pacers.add(pacer("rate.chatAll", 10, stats.chatAll, start, end, (u, t) -> u.sendChatAll(t, text)));
+        pacers.add(pacer("rate.private", 200, stats.privateChat, start, end, (u, t) -> u.sendPrivate(t, text)));
+        pacers.add(pacer("rate.collab", 50, stats.collab, start, end, (u, t) -> u.sendCollabOp(t, typed)));
+        pacers.add(pacer("rate.file", 2, stats.file, start, end, (u, t) -> {
+            // A different payload each time, so the server cannot deduplicate the blob
+            byte[] data = file.clone();
+            ByteBuffer.wrap(data).putLong(0, fileCounter.incrementAndGet()).putLong(8, System.nanoTime());
+            u.sendFile(t, data);
+        }));
+
+        String logPath = cfg.getString("histogramLog", null);
+        HistogramLogWriter log = logPath != null ? new HistogramLogWriter(new File(logPath)) : null;
+        if (log != null) {
+            log.outputLogFormatVersion();
+            log.outputLegend();
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        boolean[] warm = {warmupNanos == 0};
+        reporter.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            if (!warm[0] && now - start >= warmupNanos) {
+                warm[0] = true;
+                for (OpStats op : stats.all()) op.reset();
+                System.out.println("Warmup done, measuring");
+                return;
+            }
+            StringBuilder out = new StringBuilder(warm[0] ? "" : "(warmup)\n");
+            for (OpStats op : stats.all()) {
+                if (op == stats.login) continue;
+                Histogram h = op.interval();
+                out.append(op.intervalLine(h, reportSeconds)).append('\n');
+                if (log != null && warm[0]) {
+                    h.setTag(op.name);
+                    log.outputIntervalHistogram(h);
+                }
+            }
+            System.out.print(out);
+        }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        for (Thread t : pacers) {
+            t.join();
+        }
+        stopping = true;
+        Thread.sleep(2000); // Let what is in flight arrive
+        reporter.shutdownNow();
+        reporter.awaitTermination(5, TimeUnit.SECONDS);
+
+        double seconds = durationNanos / 1e9;
+        System.out.println("==== Summary over " + cfg.getInt("duration", 60) + " s, "
+                + readyPairs.size() * 2 + " users ====");
+        for (OpStats op : stats.all()) {
+            if (op != stats.login) System.out.println(op.summary(seconds));
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    interface Send {
+        void send(VirtualUser sender, long scheduledNanos);
+    }
+
+    // A thread sending at a fixed rate from random users until end. A send that is late
+    // keeps its original scheduled time, which is what the corrected latency is measured from.
+    private Thread pacer(String key, double defaultRate, OpStats op, long start, long end, Send send) {
+        double rate = cfg.getDouble(key, defaultRate);
+        Thread t = new Thread(() -> {
+            if (rate <= 0) return;
+            long period = (long) (1e9 / rate);
+            for (long k = 0; !stopping; k++) {
+                long scheduled = start + k * period;
+                if (scheduled >= end) break;
+                sleepUntil(scheduled);
+                int pair = readyPairs.get(ThreadLocalRandom.current().nextInt(readyPairs.size()));
+                VirtualUser sender = users.get(pair + ThreadLocalRandom.current().nextInt(2));
+                if (sender.channel.isActive()) {
+                    send.send(sender, scheduled);
+                } else {
+                    op.failed.increment();
+                }
+            }
+        }, "pacer-" + key);
+        t.start();
+        return t;
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static String pad(int size) {
+        char[] c = new char[Math.max(0, size)];
+        Arrays.fill(c, 'x');
+        return new String(c);
+    }
+}
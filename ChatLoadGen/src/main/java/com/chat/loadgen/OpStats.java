@@ -0,0 +1,102 @@
+package com.chat.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one kind of operation.
+ *
+ * Every message carries the time it was scheduled to be sent and the time it actually
+ * went out. Latency from the scheduled time is the coordinated-omission corrected
+ * figure: when the generator or the server falls behind, the waiting shows up in the
+ * numbers instead of silently lowering the send rate. Latency from the actual send is
+ * kept too, for comparison.
+ */
+final class OpStats {
+    private static final long HIGHEST = TimeUnit.MINUTES.toNanos(5);
+
+    final String name;
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder failed = new LongAdder();
+
+    private final Recorder corrected = new Recorder(HIGHEST, 3);
+    private final Recorder raw = new Recorder(HIGHEST, 3);
+    private final Histogram totalCorrected = new Histogram(HIGHEST, 3);
+    private final Histogram totalRaw = new Histogram(HIGHEST, 3);
+    private Histogram interval;
+    private Histogram rawInterval;
+    private long lastSent;
+    private long lastReceived;
+
+    OpStats(String name) {
+        this.name = name;
+    }
+
+    void record(long intendedNanos, long sentNanos, long now) {
+        received.increment();
+        corrected.recordValue(clamp(now - intendedNanos));
+        raw.recordValue(clamp(now - sentNanos));
+    }
+
+    private static long clamp(long nanos) {
+        return Math.max(0, Math.min(nanos, HIGHEST));
+    }
+
+    // Histogram of what was recorded since the previous call, also added to the totals
+    synchronized Histogram interval() {
+        interval = corrected.getIntervalHistogram(interval);
+        rawInterval = raw.getIntervalHistogram(rawInterval);
+        totalCorrected.add(interval);
+        totalRaw.add(rawInterval);
+        return interval;
+    }
+
+    // Drops everything recorded so far, used at the end of the warmup
+    synchronized void reset() {
+        interval();
+        totalCorrected.reset();
+        totalRaw.reset();
+        sent.reset();
+        received.reset();
+        failed.reset();
+        lastSent = 0;
+        lastReceived = 0;
+    }
+
+    // h is this interval's histogram, as returned by interval()
+    synchronized String intervalLine(Histogram h, double seconds) {
+        long s = sent.sum();
+        long r = received.sum();
+        String line = String.format("%-9s sent %8.1f/s  recv %9.1f/s  %s",
+                name, (s - lastSent) / seconds, (r - lastReceived) / seconds, percentiles(h));
+        lastSent = s;
+        lastReceived = r;
+        return line;
+    }
+
+    synchronized String summary(double seconds) {
+        interval();
+        return String.format("%-9s sent %d (%.1f/s)  recv %d (%.1f/s)  failed %d%n"
+                        + "          corrected   %s%n"
+                        + "          uncorrected %s",
+                name, sent.sum(), sent.sum() / seconds, received.sum(), received.sum() / seconds, failed.sum(),
+                percentiles(totalCorrected), percentiles(totalRaw));
+    }
+
+    private static String percentiles(Histogram h) {
+        if (h.getTotalCount() == 0) {
+            return "no samples";
+        }
+        return String.format("p50 %s  p99 %s  p999 %s  max %s",
+                ms(h.getValueAtPercentile(50)), ms(h.getValueAtPercentile(99)),
+                ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue()));
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+}
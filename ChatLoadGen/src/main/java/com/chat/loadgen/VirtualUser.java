@@ -0,0 +1,289 @@
+package com.chat.loadgen;
+
+import com.chat.common.CollabSync;
+import com.chat.common.Message;
+import com.chat.common.MessageCodec;
+import com.chat.common.MessageType;
+import com.chat.common.TextOperation;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One simulated user: a connection, its login, a fixed partner to be friends with, and
+ * the handler that checks every arriving load message against its send time.
+ *
+ * Load messages carry "lg|scheduledNanos|sentNanos|" at the start of their content, or
+ * in the file name for files, or the text a collab edit inserts. Both clocks are System.nanoTime() of this process, which
+ * is why senders and receivers live in the same generator.
+ */
+final class VirtualUser extends SimpleChannelInboundHandler<Message> {
+    static final String MARK = "lg|";
+    // Collab edits type at the start and cut the end once the document is this long
+    private static final int DOCUMENT_MAX = 4096;
+
+    final String name;
+    final String password;
+    final Stats stats;
+    VirtualUser partner;
+    Channel channel;
+
+    final CompletableFuture<Void> registered = new CompletableFuture<>();
+    final CompletableFuture<Void> loggedIn = new CompletableFuture<>();
+    final CompletableFuture<Void> befriended = new CompletableFuture<>();
+    private long loginScheduled;
+    private long loginSent;
+    // The pair's shared document, touched only on the event loop
+    private CollabSync collab;
+    private String document;
+
+    /** Everything the users of one run record into. */
+    static final class Stats {
+        final OpStats login = new OpStats("LOGIN");
+        final OpStats chatAll = new OpStats("CHAT_ALL");
+        final OpStats privateChat = new OpStats("PRIVATE");
+        final OpStats file = new OpStats("FILE");
+        final OpStats collab = new OpStats("COLLAB");
+
+        OpStats[] all() {
+            return new OpStats[]{login, chatAll, privateChat, file, collab};
+        }
+    }
+
+    VirtualUser(String name, String password, Stats stats) {
+        this.name = name;
+        this.password = password;
+        this.stats = stats;
+    }
+
+    void register() {
+        Message msg = new Message();
+        msg.setType(MessageType.REGISTER);
+        msg.setSender(name);
+        msg.setPassword(password);
+        channel.writeAndFlush(msg);
+    }
+
+    void login(long scheduledNanos) {
+        loginScheduled = scheduledNanos;
+        loginSent = System.nanoTime();
+        Message msg = new Message();
+        msg.setType(MessageType.LOGIN);
+        msg.setSender(name);
+        msg.setPassword(password);
+        msg.setExtraInfo(MessageCodec.CAPABILITY);
+        channel.writeAndFlush(msg);
+        stats.login.sent.increment();
+    }
+
+    // The pair's first user asks, the partner accepts when the request arrives
+    void befriend() {
+        Message msg = new Message();
+        msg.setType(MessageType.ADD_FRIEND_REQUEST);
+        msg.setSender(name);
+        msg.setRecipient(partner.name);
+        channel.writeAndFlush(msg);
+    }
+
+    // Opens a room with an empty document and invites the partner
+    void startCollab() {
+        send(MessageType.COLLAB_REQUEST, partner.name, "");
+    }
+
+    void sendChatAll(long scheduledNanos, String padding) {
+        send(MessageType.CHAT_ALL, "All", stamp(scheduledNanos) + padding);
+        stats.chatAll.sent.increment();
+    }
+
+    void sendPrivate(long scheduledNanos, String padding) {
+        send(MessageType.CHAT_PRIVATE, partner.name, stamp(scheduledNanos) + padding);
+        stats.privateChat.sent.increment();
+    }
+
+    // One edit typing text at the start of the document, made and sent like the client does
+    void sendCollabOp(long scheduledNanos, String typed) {
+        channel.eventLoop().execute(() -> {
+            if (collab == null) { // Room not open yet, or resyncing
+                stats.collab.failed.increment();
+                return;
+            }
+            String text = stamp(scheduledNanos) + typed;
+            int keep = Math.min(document.length(), DOCUMENT_MAX - text.length());
+            TextOperation op = new TextOperation().insert(text).retain(Math.max(0, keep))
+                    .delete(document.length() - Math.max(0, keep));
+            document = op.apply(document);
+            collab.local(op);
+            flushCollab(channel);
+            stats.collab.sent.increment();
+        });
+    }
+
+    void sendFile(long scheduledNanos, byte[] data) {
+        Message msg = new Message();
+        msg.setType(MessageType.FILE);
+        msg.setSender(name);
+        msg.setRecipient(partner.name);
+        msg.setFileName(stamp(scheduledNanos) + "load.bin");
+        msg.setFileData(data);
+        channel.writeAndFlush(msg);
+        stats.file.sent.increment();
+    }
+
+    private void send(MessageType type, String recipient, String content) {
+        Message msg = new Message();
+        msg.setType(type);
+        msg.setSender(name);
+        msg.setRecipient(recipient);
+        msg.setContent(content);
+        channel.writeAndFlush(msg);
+    }
+
+    private static String stamp(long scheduledNanos) {
+        return MARK + scheduledNanos + "|" + System.nanoTime() + "|";
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
+        long now = System.nanoTime();
+        boolean fromPartner = partner != null && partner.name.equals(msg.getSender());
+        switch (msg.getType()) {
+            case REGISTER_SUCCESS:
+            case REGISTER_FAIL: // Left over from an earlier run, the login decides
+                registered.complete(null);
+                break;
+            case LOGIN_SUCCESS:
+                stats.login.record(loginScheduled, loginSent, now);
+                onFriendList(msg.getOnlineUsers()); // Sent along with the login
+                loggedIn.complete(null);
+                break;
+            case LOGIN_FAIL:
+                stats.login.failed.increment();
+                loggedIn.completeExceptionally(new IllegalStateException(name + ": " + msg.getContent()));
+                break;
+            case FRIEND_LIST:
+                onFriendList(msg.getOnlineUsers());
+                break;
+            case ADD_FRIEND_REQUEST:
+                if (fromPartner) {
+                    Message accept = new Message();
+                    accept.setType(MessageType.ADD_FRIEND_RESPONSE);
+                    accept.setSender(name);
+                    accept.setRecipient(partner.name);
+                    accept.setContent("ACCEPTED");
+                    ctx.writeAndFlush(accept);
+                }
+                break;
+            case ADD_FRIEND_RESPONSE:
+                if (fromPartner && "ACCEPTED".equals(msg.getContent())) {
+                    befriended.complete(null);
+                }
+                break;
+            case COLLAB_REQUEST:
+                if (fromPartner) {
+                    Message accept = new Message();
+                    accept.setType(MessageType.COLLAB_ACCEPT);
+                    accept.setSender(name);
+                    accept.setRecipient(partner.name);
+                    accept.setExtraInfo(msg.getExtraInfo());
+                    ctx.writeAndFlush(accept);
+                }
+                break;
+            case COLLAB_SYNC:
+                collab = new CollabSync(msg.getExtraInfo(), msg.getSeq());
+                document = msg.getContent();
+                break;
+            case CHAT_ALL:
+                record(stats.chatAll, msg.getContent(), now);
+                break;
+            case CHAT_PRIVATE:
+                if (fromPartner) record(stats.privateChat, msg.getContent(), now);
+                break;
+            case COLLAB_OP:
+                onCollabOp(ctx, msg, now);
+                break;
+            case FILE:
+                if (fromPartner) record(stats.file, msg.getFileName(), now);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onCollabOp(ChannelHandlerContext ctx, Message msg, long now) {
+        if (collab == null) {
+            return;
+        }
+        try {
+            if (CollabSync.isAck(msg)) {
+                collab.ack(msg);
+                flushCollab(ctx.channel());
+                return;
+            }
+            document = collab.remote(msg).apply(document);
+        } catch (RuntimeException e) {
+            System.err.println(name + ": collab out of step, " + e.getMessage());
+            String room = collab.room();
+            collab = null;
+            Message resync = new Message();
+            resync.setType(MessageType.COLLAB_SYNC);
+            resync.setSender(name);
+            resync.setExtraInfo(room);
+            ctx.writeAndFlush(resync);
+            return;
+        }
+        for (String c : msg.getOnlineUsers()) { // The partner's insert starts with its stamp
+            if (c.startsWith("+")) {
+                record(stats.collab, c.substring(1), now);
+                break;
+            }
+        }
+    }
+
+    // Edits made while the last one was in flight go out as one op once its ack arrives,
+    // like the client with no pacing window
+    private void flushCollab(Channel ch) {
+        Message msg = new Message();
+        msg.setType(MessageType.COLLAB_OP);
+        msg.setSender(name);
+        if (collab.flush(msg)) {
+            ch.writeAndFlush(msg);
+        }
+    }
+
+    private void onFriendList(List<String> friends) {
+        if (partner != null && friends != null && friends.contains(partner.name)) {
+            befriended.complete(null);
+        }
+    }
+
+    private static void record(OpStats op, String stamped, long now) {
+        if (stamped == null || !stamped.startsWith(MARK)) {
+            return;
+        }
+        int a = MARK.length();
+        int b = stamped.indexOf('|', a);
+        int c = b < 0 ? -1 : stamped.indexOf('|', b + 1);
+        if (c < 0) {
+            return;
+        }
+        op.record(Long.parseLong(stamped.substring(a, b)), Long.parseLong(stamped.substring(b + 1, c)), now);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        IllegalStateException closed = new IllegalStateException(name + ": connection closed");
+        registered.completeExceptionally(closed);
+        loggedIn.completeExceptionally(closed);
+        befriended.completeExceptionally(closed);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        System.err.println(name + ": " + cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,98 @@
+package com.chat.common;
+
+/**
+ * A participant's end of a shared text held by the server (CollabHub), kept in step with
+ * TextOperations instead of locks.
+ *
+ * The server numbers the document's revisions. Edits are applied here at once and
+ * composed into a single buffered op, which the caller sends with flush whenever it
+ * likes, as COLLAB_OP carrying the room in extraInfo and, in seq, the revision it was
+ * made on. Only one op is in flight at a time: flush does nothing until the server has
+ * acknowledged the previous one. Ops from the other participants arrive numbered with
+ * the revision they created and are transformed past the in-flight and buffered edits
+ * before being applied here, the same way the server transformed our edits past
+ * theirs. On ties our text goes first on both sides, so everyone ends up with the same
+ * document.
+ *
+ * Acks are COLLAB_OP without components. A revision out of order means something was
+ * lost, after which the text can only be brought back in step by a fresh COLLAB_SYNC.
+ */
+public final class CollabSync {
+    private final String room;
+    private long revision;
+    private TextOperation outstanding; // Sent, not acknowledged yet
+    private TextOperation buffer; // Applied here, waiting for outstanding's ack
+
+    // Starts from a COLLAB_SYNC snapshot
+    public CollabSync(String room, long revision) {
+        this.room = room;
+        this.revision = revision;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    // Records an edit already applied here, it waits in the buffer for flush
+    public void local(TextOperation op) {
+        buffer = buffer == null ? op : TextOperation.compose(buffer, op);
+    }
+
+    public boolean hasBuffered() {
+        return buffer != null;
+    }
+
+    public boolean inFlight() {
+        return outstanding != null;
+    }
+
+    // Moves the buffer into out if nothing is in flight; returns whether out should be sent
+    public boolean flush(Message out) {
+        if (outstanding != null || buffer == null) {
+            return false;
+        }
+        outstanding = buffer;
+        buffer = null;
+        out.setExtraInfo(room);
+        out.setSeq(revision);
+        out.setOnlineUsers(outstanding.toList()); // Reusing the list field for the components
+        return true;
+    }
+
+    public static boolean isAck(Message in) {
+        return in.getOnlineUsers() == null;
+    }
+
+    // The server applied the op in flight, the buffer may go next
+    public void ack(Message in) {
+        if (outstanding == null) {
+            throw new IllegalStateException("Ack for revision " + in.getSeq() + " with nothing in flight");
+        }
+        advance(in);
+        outstanding = null;
+    }
+
+    // Another participant's op, transformed to apply to the text as it is here
+    public TextOperation remote(Message in) {
+        advance(in);
+        TextOperation op = TextOperation.fromList(in.getOnlineUsers());
+        if (outstanding != null) {
+            TextOperation[] t = TextOperation.transform(outstanding, op);
+            outstanding = t[0];
+            op = t[1];
+        }
+        if (buffer != null) {
+            TextOperation[] t = TextOperation.transform(buffer, op);
+            buffer = t[0];
+            op = t[1];
+        }
+        return op;
+    }
+
+    private void advance(Message in) {
+        if (in.getSeq() == null || in.getSeq() != revision + 1) {
+            throw new IllegalStateException("Out of step: got revision " + in.getSeq() + ", expected " + (revision + 1));
+        }
+        revision++;
+    }
+}
@@ -0,0 +1,257 @@
+package com.chat.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link Message}.
+ *
+ * Frame layout: MAGIC, type tag (MessageType ordinal), varint field mask, then every
+ * field whose bit is set, in bit order. Strings and byte arrays are prefixed with a
+ * varint byte length, lists with a varint element count, numbers are varints.
+ * Messages in a history list are complete nested frames, MAGIC included.
+ * fileData is always written last so large payloads can be appended without copying.
+ *
+ * MessageType constants must only ever be appended, never reordered.
+ */
+public final class MessageCodec {
+    // 0xB1 can never start a JSON frame, so both formats can share one connection
+    public static final byte MAGIC = (byte) 0xB1;
+    // Capabilities a client can advertise in LOGIN.extraInfo, comma separated
+    public static final String WIRE_BINARY = "wire=bin1";   // understands binary frames
+    public static final String LOGIN_COMBINED = "login=1";  // takes its friend list in LOGIN_SUCCESS
+    // What this build advertises
+    public static final String CAPABILITY = WIRE_BINARY + "," + LOGIN_COMBINED;
+
+    private static final byte NO_TYPE = (byte) 0xFF;
+
+    private static final int F_SENDER = 1;
+    private static final int F_RECIPIENT = 1 << 1;
+    private static final int F_CONTENT = 1 << 2;
+    private static final int F_ONLINE_USERS = 1 << 3;
+    private static final int F_FILE_NAME = 1 << 4;
+    private static final int F_PASSWORD = 1 << 5;
+    private static final int F_EXTRA_INFO = 1 << 6;
+    private static final int F_FILE_DATA = 1 << 7;
+    private static final int F_TRANSFER_ID = 1 << 8;
+    private static final int F_OFFSET = 1 << 9;
+    private static final int F_TOTAL_SIZE = 1 << 10;
+    private static final int F_BLOB_ID = 1 << 11;
+    private static final int F_LENGTH = 1 << 12;
+    private static final int F_SEQ = 1 << 13;
+    private static final int F_TIMESTAMP = 1 << 14;
+    private static final int F_HISTORY = 1 << 15;
+    private static final int KNOWN_FIELDS = (F_HISTORY << 1) - 1;
+
+    // History pages never nest, deeper frames are corrupt (or hostile)
+    private static final int MAX_DEPTH = 2;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private MessageCodec() {}
+
+    public static boolean hasCapability(String advertised, String capability) {
+        if (advertised == null) {
+            return false;
+        }
+        for (String c : advertised.split(",")) {
+            if (c.trim().equals(capability)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void encode(Message msg, ByteBuf out) {
+        byte[] data = msg.getFileData();
+        encodeHeader(msg, data != null ? data.length : -1, out);
+        if (data != null) {
+            out.writeBytes(data);
+        }
+    }
+
+    /**
+     * Writes everything except the fileData bytes. With dataLength >= 0 the frame is
+     * declared to carry that many trailing bytes, which the caller appends itself
+     * (e.g. as another component of a CompositeByteBuf); msg.getFileData() is ignored.
+     */
+    public static void encodeHeader(Message msg, int dataLength, ByteBuf out) {
+        int mask = 0;
+        if (msg.getSender() != null) mask |= F_SENDER;
+        if (msg.getRecipient() != null) mask |= F_RECIPIENT;
+        if (msg.getContent() != null) mask |= F_CONTENT;
+        if (msg.getOnlineUsers() != null) mask |= F_ONLINE_USERS;
+        if (msg.getFileName() != null) mask |= F_FILE_NAME;
+        if (msg.getPassword() != null) mask |= F_PASSWORD;
+        if (msg.getExtraInfo() != null) mask |= F_EXTRA_INFO;
+        if (dataLength >= 0) mask |= F_FILE_DATA;
+        if (msg.getTransferId() != null) mask |= F_TRANSFER_ID;
+        if (msg.getOffset() != null) mask |= F_OFFSET;
+        if (msg.getTotalSize() != null) mask |= F_TOTAL_SIZE;
+        if (msg.getBlobId() != null) mask |= F_BLOB_ID;
+        if (msg.getLength() != null) mask |= F_LENGTH;
+        if (msg.getSeq() != null) mask |= F_SEQ;
+        if (msg.getTimestamp() != null) mask |= F_TIMESTAMP;
+        if (msg.getHistory() != null) mask |= F_HISTORY;
+
+        out.writeByte(MAGIC);
+        out.writeByte(msg.getType() == null ? NO_TYPE : msg.getType().ordinal());
+        writeVarInt(out, mask);
+
+        if ((mask & F_SENDER) != 0) writeString(out, msg.getSender());
+        if ((mask & F_RECIPIENT) != 0) writeString(out, msg.getRecipient());
+        if ((mask & F_CONTENT) != 0) writeString(out, msg.getContent());
+        if ((mask & F_ONLINE_USERS) != 0) {
+            List<String> users = msg.getOnlineUsers();
+            writeVarInt(out, users.size());
+            for (int i = 0; i < users.size(); i++) {
+                writeString(out, users.get(i));
+            }
+        }
+        if ((mask & F_FILE_NAME) != 0) writeString(out, msg.getFileName());
+        if ((mask & F_PASSWORD) != 0) writeString(out, msg.getPassword());
+        if ((mask & F_EXTRA_INFO) != 0) writeString(out, msg.getExtraInfo());
+        if ((mask & F_TRANSFER_ID) != 0) writeString(out, msg.getTransferId());
+        if ((mask & F_OFFSET) != 0) writeVarLong(out, msg.getOffset());
+        if ((mask & F_TOTAL_SIZE) != 0) writeVarLong(out, msg.getTotalSize());
+        if ((mask & F_BLOB_ID) != 0) writeString(out, msg.getBlobId());
+        if ((mask & F_LENGTH) != 0) writeVarLong(out, msg.getLength());
+        if ((mask & F_SEQ) != 0) writeVarLong(out, msg.getSeq());
+        if ((mask & F_TIMESTAMP) != 0) writeVarLong(out, msg.getTimestamp());
+        if ((mask & F_HISTORY) != 0) {
+            List<Message> history = msg.getHistory();
+            writeVarInt(out, history.size());
+            for (int i = 0; i < history.size(); i++) {
+                encode(history.get(i), out);
+            }
+        }
+        if ((mask & F_FILE_DATA) != 0) writeVarInt(out, dataLength);
+    }
+
+    public static Message decode(ByteBuf in) {
+        return decode(in, 0);
+    }
+
+    private static Message decode(ByteBuf in, int depth) {
+        if (depth >= MAX_DEPTH) {
+            throw new CorruptedFrameException("Messages nested too deeply");
+        }
+        if (in.readByte() != MAGIC) {
+            throw new CorruptedFrameException("Not a binary message frame");
+        }
+        Message msg = new Message();
+        int tag = in.readUnsignedByte();
+        if (tag != (NO_TYPE & 0xFF)) {
+            if (tag >= TYPES.length) {
+                throw new CorruptedFrameException("Unknown message type tag: " + tag);
+            }
+            msg.setType(TYPES[tag]);
+        }
+        int mask = readVarInt(in);
+        if ((mask & ~KNOWN_FIELDS) != 0) {
+            throw new CorruptedFrameException("Unknown message fields: 0x" + Integer.toHexString(mask));
+        }
+
+        if ((mask & F_SENDER) != 0) msg.setSender(readString(in));
+        if ((mask & F_RECIPIENT) != 0) msg.setRecipient(readString(in));
+        if ((mask & F_CONTENT) != 0) msg.setContent(readString(in));
+        if ((mask & F_ONLINE_USERS) != 0) {
+            int count = readLength(in);
+            List<String> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                users.add(readString(in));
+            }
+            msg.setOnlineUsers(users);
+        }
+        if ((mask & F_FILE_NAME) != 0) msg.setFileName(readString(in));
+        if ((mask & F_PASSWORD) != 0) msg.setPassword(readString(in));
+        if ((mask & F_EXTRA_INFO) != 0) msg.setExtraInfo(readString(in));
+        if ((mask & F_TRANSFER_ID) != 0) msg.setTransferId(readString(in));
+        if ((mask & F_OFFSET) != 0) msg.setOffset(readVarLong(in));
+        if ((mask & F_TOTAL_SIZE) != 0) msg.setTotalSize(readVarLong(in));
+        if ((mask & F_BLOB_ID) != 0) msg.setBlobId(readString(in));
+        if ((mask & F_LENGTH) != 0) msg.setLength(readVarLong(in));
+        if ((mask & F_SEQ) != 0) msg.setSeq(readVarLong(in));
+        if ((mask & F_TIMESTAMP) != 0) msg.setTimestamp(readVarLong(in));
+        if ((mask & F_HISTORY) != 0) {
+            int count = readLength(in);
+            List<Message> history = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                history.add(decode(in, depth + 1));
+            }
+            msg.setHistory(history);
+        }
+        if ((mask & F_FILE_DATA) != 0) {
+            byte[] data = new byte[readLength(in)];
+            in.readBytes(data);
+            msg.setFileData(data);
+        }
+        return msg;
+    }
+
+    public static void writeVarInt(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(ByteBuf in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Varint too long");
+    }
+
+    public static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(ByteBuf in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Varlong too long");
+    }
+
+    private static void writeString(ByteBuf out, String s) {
+        writeVarInt(out, ByteBufUtil.utf8Bytes(s));
+        ByteBufUtil.writeUtf8(out, s);
+    }
+
+    private static String readString(ByteBuf in) {
+        int len = readLength(in);
+        String s = in.toString(in.readerIndex(), len, CharsetUtil.UTF_8);
+        in.skipBytes(len);
+        return s;
+    }
+
+    // Lengths can never exceed what is left in the frame, which also bounds allocations
+    private static int readLength(ByteBuf in) {
+        int len = readVarInt(in);
+        if (len < 0 || len > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid length " + len + ", " + in.readableBytes() + " bytes left");
+        }
+        return len;
+    }
+}
@@ -0,0 +1,79 @@
+package com.chat.common;
+
+import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Turns length-delimited frames into {@link Message}s and back.
+ *
+ * Inbound frames are auto-detected: binary frames start with {@link MessageCodec#MAGIC},
+ * anything else is parsed as JSON. Outbound frames use the channel's negotiated
+ * {@link WireFormat}, which stays JSON until the peer is known to speak binary.
+ */
+public class MessageFrameCodec extends MessageToMessageCodec<ByteBuf, Message> {
+    public static final AttributeKey<WireFormat> WIRE_FORMAT = AttributeKey.valueOf("wireFormat");
+
+    // Gson instances are thread-safe, one is enough for every channel
+    private static final Gson GSON = new Gson();
+
+    public static WireFormat getWireFormat(Channel channel) {
+        WireFormat format = channel.attr(WIRE_FORMAT).get();
+        return format != null ? format : WireFormat.JSON;
+    }
+
+    public static void setWireFormat(Channel channel, WireFormat format) {
+        channel.attr(WIRE_FORMAT).set(format);
+    }
+
+    public static ByteBuf encode(ByteBufAllocator alloc, Message msg, WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            ByteBuf buf = alloc.buffer();
+            try {
+                MessageCodec.encode(msg, buf);
+                return buf;
+            } catch (RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+        }
+        return ByteBufUtil.writeUtf8(alloc, GSON.toJson(msg));
+    }
+
+    public static Message decode(ByteBuf frame) {
+        if (frame.isReadable() && frame.getByte(frame.readerIndex()) == MessageCodec.MAGIC) {
+            return MessageCodec.decode(frame);
+        }
+        Reader reader = new InputStreamReader(new ByteBufInputStream(frame), CharsetUtil.UTF_8);
+        return GSON.fromJson(reader, Message.class);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) {
+        out.add(encode(ctx.alloc(), msg, getWireFormat(ctx.channel())));
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) {
+        boolean binary = frame.isReadable() && frame.getByte(frame.readerIndex()) == MessageCodec.MAGIC;
+        Message msg = decode(frame);
+        if (msg != null) {
+            out.add(msg);
+        }
+        // A binary frame from the peer proves it understands binary, answer in kind
+        if (binary && getWireFormat(ctx.channel()) != WireFormat.BINARY) {
+            setWireFormat(ctx.channel(), WireFormat.BINARY);
+        }
+    }
+}
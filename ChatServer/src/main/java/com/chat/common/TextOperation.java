@@ -0,0 +1,292 @@
+package com.chat.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An edit to a text, as a run of components that walk the whole old text once:
+ * retain n characters, insert a string, or delete n characters. Built with
+ * retain/insert/delete, which merge neighbours and keep an insert ahead of a delete
+ * at the same place, so equal edits always have the same components.
+ *
+ * transform is the operational transformation that lets two edits made on the same
+ * text at the same time be applied in either order with the same result, and compose
+ * folds two edits in a row into one; see CollabSync.
+ *
+ * On the wire (COLLAB_OP) the components are a list of strings: "=n" retains,
+ * "-n" deletes and "+text" inserts.
+ */
+public final class TextOperation {
+    // Integer > 0 retains, Integer < 0 deletes, String inserts
+    private final List<Object> ops = new ArrayList<>();
+    private int baseLength;
+    private int targetLength;
+
+    public TextOperation retain(int n) {
+        if (n < 0) throw new IllegalArgumentException("retain " + n);
+        if (n == 0) return this;
+        baseLength += n;
+        targetLength += n;
+        int last = ops.size() - 1;
+        if (last >= 0 && isRetain(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) + n);
+        } else {
+            ops.add(n);
+        }
+        return this;
+    }
+
+    public TextOperation insert(String s) {
+        if (s.isEmpty()) return this;
+        targetLength += s.length();
+        int last = ops.size() - 1;
+        if (last >= 0 && ops.get(last) instanceof String) {
+            ops.set(last, ops.get(last) + s);
+        } else if (last >= 0 && isDelete(ops.get(last))) {
+            // Inserts go before deletes, so "delete then insert" and "insert then delete" are one op
+            if (last >= 1 && ops.get(last - 1) instanceof String) {
+                ops.set(last - 1, ops.get(last - 1) + s);
+            } else {
+                ops.add(ops.get(last));
+                ops.set(last, s);
+            }
+        } else {
+            ops.add(s);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int n) {
+        if (n < 0) throw new IllegalArgumentException("delete " + n);
+        if (n == 0) return this;
+        baseLength += n;
+        int last = ops.size() - 1;
+        if (last >= 0 && isDelete(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) - n);
+        } else {
+            ops.add(-n);
+        }
+        return this;
+    }
+
+    public int baseLength() { return baseLength; }
+    public int targetLength() { return targetLength; }
+
+    // Characters of all inserts together
+    public int insertedLength() {
+        int n = 0;
+        for (Object o : ops) {
+            if (o instanceof String) n += ((String) o).length();
+        }
+        return n;
+    }
+
+    public boolean isNoop() {
+        return ops.isEmpty() || (ops.size() == 1 && isRetain(ops.get(0)));
+    }
+
+    public String apply(String text) {
+        if (text.length() != baseLength) {
+            throw new IllegalArgumentException("Operation is for length " + baseLength + ", text has " + text.length());
+        }
+        StringBuilder out = new StringBuilder(targetLength);
+        int pos = 0;
+        for (Object op : ops) {
+            if (op instanceof String) {
+                out.append((String) op);
+            } else if (isRetain(op)) {
+                int n = (Integer) op;
+                out.append(text, pos, pos + n);
+                pos += n;
+            } else {
+                pos -= (Integer) op;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * For a and b made on the same text, returns {a', b'} such that applying a then b'
+     * gives the same text as b then a'. When both insert at the same place, a's insert
+     * ends up first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Operations are for lengths " + a.baseLength + " and " + b.baseLength);
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        int i1 = 0, i2 = 0;
+        Object o1 = next(a, i1++), o2 = next(b, i2++);
+        while (o1 != null || o2 != null) {
+            if (o1 instanceof String) {
+                aPrime.insert((String) o1);
+                bPrime.retain(((String) o1).length());
+                o1 = next(a, i1++);
+                continue;
+            }
+            if (o2 instanceof String) {
+                aPrime.retain(((String) o2).length());
+                bPrime.insert((String) o2);
+                o2 = next(b, i2++);
+                continue;
+            }
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException("Operations do not cover the same text");
+            }
+            int n1 = (Integer) o1, n2 = (Integer) o2;
+            if (n1 > 0 && n2 > 0) { // Both retain
+                int min = Math.min(n1, n2);
+                aPrime.retain(min);
+                bPrime.retain(min);
+                o1 = n1 > min ? (Object) (n1 - min) : next(a, i1++);
+                o2 = n2 > min ? (Object) (n2 - min) : next(b, i2++);
+            } else if (n1 < 0 && n2 < 0) { // Both delete the same characters, nothing left to do
+                int min = Math.min(-n1, -n2);
+                o1 = -n1 > min ? (Object) (n1 + min) : next(a, i1++);
+                o2 = -n2 > min ? (Object) (n2 + min) : next(b, i2++);
+            } else if (n1 < 0) { // a deletes what b keeps
+                int min = Math.min(-n1, n2);
+                aPrime.delete(min);
+                o1 = -n1 > min ? (Object) (n1 + min) : next(a, i1++);
+                o2 = n2 > min ? (Object) (n2 - min) : next(b, i2++);
+            } else { // b deletes what a keeps
+                int min = Math.min(n1, -n2);
+                bPrime.delete(min);
+                o1 = n1 > min ? (Object) (n1 - min) : next(a, i1++);
+                o2 = -n2 > min ? (Object) (n2 + min) : next(b, i2++);
+            }
+        }
+        return new TextOperation[]{aPrime, bPrime};
+    }
+
+    /**
+     * The single edit that has the same effect as applying a and then b, which must be
+     * made on a's result.
+     */
+    public static TextOperation compose(TextOperation a, TextOperation b) {
+        if (a.targetLength != b.baseLength) {
+            throw new IllegalArgumentException("Second operation is for length " + b.baseLength
+                    + ", first one leaves " + a.targetLength);
+        }
+        TextOperation result = new TextOperation();
+        int i1 = 0, i2 = 0;
+        Object o1 = next(a, i1++), o2 = next(b, i2++);
+        while (o1 != null || o2 != null) {
+            if (isDelete(o1)) { // Gone before b sees the text
+                result.delete(-(Integer) o1);
+                o1 = next(a, i1++);
+                continue;
+            }
+            if (o2 instanceof String) {
+                result.insert((String) o2);
+                o2 = next(b, i2++);
+                continue;
+            }
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException("Operations do not cover the same text");
+            }
+            int n2 = (Integer) o2;
+            if (o1 instanceof String) {
+                String s = (String) o1;
+                int len = Math.min(s.length(), Math.abs(n2));
+                if (n2 > 0) { // b keeps what a inserted
+                    result.insert(s.substring(0, len));
+                } // else b deletes it again, so it never shows up
+                o1 = s.length() > len ? s.substring(len) : next(a, i1++);
+                o2 = Math.abs(n2) > len ? (Object) (n2 > 0 ? n2 - len : n2 + len) : next(b, i2++);
+                continue;
+            }
+            int n1 = (Integer) o1;
+            int min = Math.min(n1, Math.abs(n2));
+            if (n2 > 0) {
+                result.retain(min);
+            } else {
+                result.delete(min);
+            }
+            o1 = n1 > min ? (Object) (n1 - min) : next(a, i1++);
+            o2 = Math.abs(n2) > min ? (Object) (n2 > 0 ? n2 - min : n2 + min) : next(b, i2++);
+        }
+        return result;
+    }
+
+    private static Object next(TextOperation op, int i) {
+        return i < op.ops.size() ? op.ops.get(i) : null;
+    }
+
+    // Where a position in the old text (a caret) ends up in the new one
+    public int transformIndex(int index) {
+        int newIndex = index;
+        for (Object op : ops) {
+            if (op instanceof String) {
+                newIndex += ((String) op).length();
+            } else if (isRetain(op)) {
+                index -= (Integer) op;
+            } else {
+                newIndex -= Math.min(index, -(Integer) op);
+                index += (Integer) op;
+            }
+            if (index < 0) break;
+        }
+        return newIndex;
+    }
+
+    // The edit turning before into after, as one changed range between a common prefix and suffix
+    public static TextOperation diff(String before, String after) {
+        int max = Math.min(before.length(), after.length());
+        int prefix = 0;
+        while (prefix < max && before.charAt(prefix) == after.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < max - prefix
+                && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextOperation()
+                .retain(prefix)
+                .delete(before.length() - prefix - suffix)
+                .insert(after.substring(prefix, after.length() - suffix))
+                .retain(suffix);
+    }
+
+    public List<String> toList() {
+        List<String> list = new ArrayList<>(ops.size());
+        for (Object op : ops) {
+            if (op instanceof String) {
+                list.add("+" + op);
+            } else if (isRetain(op)) {
+                list.add("=" + op);
+            } else {
+                list.add(op.toString()); // Already "-n"
+            }
+        }
+        return list;
+    }
+
+    public static TextOperation fromList(List<String> list) {
+        TextOperation op = new TextOperation();
+        if (list == null) return op;
+        for (String s : list) {
+            if (s.isEmpty()) throw new IllegalArgumentException("Empty component");
+            switch (s.charAt(0)) {
+                case '=': op.retain(Integer.parseInt(s.substring(1))); break;
+                case '-': op.delete(Integer.parseInt(s.substring(1))); break;
+                case '+': op.insert(s.substring(1)); break;
+                default: throw new IllegalArgumentException("Bad component: " + s);
+            }
+        }
+        return op;
+    }
+
+    private static boolean isRetain(Object op) {
+        return op instanceof Integer && (Integer) op > 0;
+    }
+
+    private static boolean isDelete(Object op) {
+        return op instanceof Integer && (Integer) op < 0;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
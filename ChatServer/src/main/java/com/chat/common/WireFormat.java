@@ -0,0 +1,6 @@
+package com.chat.common;
+
+public enum WireFormat {
+    JSON,   // Legacy Gson frames, understood by every client
+    BINARY  // MessageCodec frames, negotiated at LOGIN
+}
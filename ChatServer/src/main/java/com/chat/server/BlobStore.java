@@ -0,0 +1,169 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Content-addressed store for FILE/IMAGE payloads, kept on disk next to chat.db.
+ *
+ * Blobs live at blobs/ab/abcdef... keyed by the hex SHA-256 of their content, so the
+ * same image posted a hundred times is stored once. Uploads are spooled under
+ * blobs/tmp and moved into place when complete.
+ */
+public class BlobStore {
+    private static final Path ROOT = Paths.get("blobs");
+    private static final Path TMP = ROOT.resolve("tmp");
+
+    // Blocking file work that must not run on an event loop: upload spooling, commits and reads
+    public static final ExecutorService IO = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "blob-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void init() {
+        try {
+            Files.createDirectories(TMP);
+            // Partial uploads cannot be resumed across restarts, the hash state is gone
+            try (java.util.stream.Stream<Path> stale = Files.list(TMP)) {
+                stale.forEach(p -> p.toFile().delete());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean isValidId(String blobId) {
+        if (blobId == null || blobId.length() != 64) return false;
+        for (int i = 0; i < blobId.length(); i++) {
+            char c = blobId.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+
+    public static Path pathFor(String blobId) {
+        return ROOT.resolve(blobId.substring(0, 2)).resolve(blobId);
+    }
+
+    public static boolean exists(String blobId) {
+        return isValidId(blobId) && Files.isRegularFile(pathFor(blobId));
+    }
+
+    public static long size(String blobId) throws IOException {
+        return Files.size(pathFor(blobId));
+    }
+
+    public static FileChannel open(String blobId) throws IOException {
+        return FileChannel.open(pathFor(blobId), StandardOpenOption.READ);
+    }
+
+    public static byte[] read(String blobId) throws IOException {
+        return Files.readAllBytes(pathFor(blobId));
+    }
+
+    // Stores a whole in-memory payload (legacy clients), returns its id
+    public static String store(byte[] data) throws IOException {
+        Upload upload = beginUpload();
+        try {
+            upload.append(data);
+            return upload.commit();
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+    }
+
+    // Spools into a fresh file of its own, whatever the client calls the transfer
+    public static Upload beginUpload() throws IOException {
+        return new Upload(Files.createTempFile(TMP, "up", ".part"));
+    }
+
+    /** An upload being written and hashed incrementally, in order. */
+    public static class Upload {
+        private final Path tmp;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long written;
+
+        private Upload(Path tmp) throws IOException {
+            this.tmp = tmp;
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            this.digest = sha256();
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public void append(byte[] data) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            digest.update(data);
+            written += data.length;
+        }
+
+        // Moves the spooled file into place, or drops it if that content is already stored
+        public String commit() throws IOException {
+            channel.close();
+            String blobId = toHex(digest.digest());
+            Path target = pathFor(blobId);
+            if (Files.exists(target)) {
+                Files.deleteIfExists(tmp);
+                return blobId;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                try {
+                    Files.move(tmp, target);
+                } catch (FileAlreadyExistsException raced) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            return blobId;
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hex[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = hex[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
@@ -1,149 +1,277 @@
 package com.chat.server;
 
 import com.chat.common.Message;
+import com.chat.common.MessageFrameCodec;
 import com.chat.common.MessageType;
-import com.google.gson.Gson;
+import com.chat.common.WireFormat;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
-import io.netty.handler.codec.MessageToMessageDecoder;
-import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.util.CharsetUtil;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
-    private static final int PORT = 8888;
-    private static final Map<String, Channel> clients = new ConcurrentHashMap<>();
+    private static final int PORT = ServerConfig.getInt("server.port", 8888);
+    private static final int BOSS_THREADS = ServerConfig.getInt("net.bossThreads", 1);
+    // 0 leaves it to Netty, twice the number of cores
+    private static final int WORKER_THREADS = ServerConfig.getInt("net.workerThreads", 0);
+    // With SO_REUSEPORT every boss thread gets its own listening socket on the port
+    private static final boolean REUSE_PORT = ServerConfig.getBoolean("net.reusePort", false);
+    private static final int BACKLOG = ServerConfig.getInt("net.backlog", 1024);
+    private static final boolean TCP_NODELAY = ServerConfig.getBoolean("net.tcpNoDelay", true);
+    // Flushes still issued directly are merged while a read is in progress; after this
+    // many merged flushes one goes through anyway
+    private static final int FLUSH_LIMIT = ServerConfig.getInt("net.flushConsolidation", 256);
+    // isWritable() turns false above the high mark and true again below the low one
+    private static final int WRITE_BUFFER_LOW = ServerConfig.getInt("net.writeBufferLowWaterMark", 64 * 1024);
+    private static final int WRITE_BUFFER_HIGH = ServerConfig.getInt("net.writeBufferHighWaterMark", 256 * 1024);
 
     public static void main(String[] args) throws InterruptedException {
         // Initialize Database
         DatabaseManager.init();
+        MessageLog.init();
+        BlobStore.init();
         System.out.println("Database initialized.");
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.select();
+        ByteBufAllocator allocator = allocator();
+        int acceptors = 1;
+        if (REUSE_PORT) {
+            if (transport.reusePort != null) {
+                acceptors = Math.max(BOSS_THREADS, 1);
+            } else {
+                System.err.println("net.reusePort needs the epoll or io_uring transport, binding once");
+            }
+        }
+        EventLoopGroup bossGroup = transport.newGroup(Math.max(BOSS_THREADS, 1));
+        EventLoopGroup workerGroup = transport.newGroup(WORKER_THREADS);
 
         try {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
+             .channel(transport.serverChannel)
+             .option(ChannelOption.SO_BACKLOG, BACKLOG)
+             .option(ChannelOption.ALLOCATOR, allocator)
+             .childOption(ChannelOption.ALLOCATOR, allocator)
+             .childOption(ChannelOption.TCP_NODELAY, TCP_NODELAY)
+             .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                     new WriteBufferWaterMark(WRITE_BUFFER_LOW, WRITE_BUFFER_HIGH))
              .childHandler(new ChannelInitializer<SocketChannel>() {
                  @Override
                  protected void initChannel(SocketChannel ch) throws Exception {
                      ch.pipeline().addLast(
+                             new FlushConsolidationHandler(FLUSH_LIMIT, false),
                              new LengthFieldBasedFrameDecoder(10485760, 0, 4, 0, 4),
                              new LengthFieldPrepender(4),
-                             new StringDecoder(CharsetUtil.UTF_8),
-                             new StringEncoder(CharsetUtil.UTF_8),
-                             new MessageToMessageEncoder<Message>() {
-                                 @Override
-                                 protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) {
-                                     out.add(new Gson().toJson(msg));
-                                 }
-                             },
-                             new MessageToMessageDecoder<String>() {
-                                 @Override
-                                 protected void decode(ChannelHandlerContext ctx, String msg, List<Object> out) {
-                                     out.add(new Gson().fromJson(msg, Message.class));
-                                 }
-                             },
+                             MetricsHandler.INSTANCE,
+                             new ChunkedWriteHandler(),
+                             new TimedFrameCodec(),
+                             new SlowConsumerHandler(),
+                             new RateLimitHandler(),
                              new NettyServerHandler()
                      );
                  }
              });
 
-            System.out.println("Netty Server starting on port " + PORT + "...");
-            ChannelFuture f = b.bind(PORT).sync();
-            f.channel().closeFuture().sync();
+            Metrics.startHttp();
+            Presence.start(workerGroup);
+            workerGroup.scheduleAtFixedRate(FileTransferManager::purgeStale, 1, 1, TimeUnit.MINUTES);
+            workerGroup.scheduleAtFixedRate(
+                    () -> System.out.println("DB pool: " + DatabaseManager.getPoolStats()
+                            + "\nOutbound: " + SlowConsumerHandler.stats() + " " + WriteBatcher.stats()
+                            + "\nRate limit: " + RateLimitHandler.stats()
+                            + "\nCollab: " + CollabHub.stats()), 1, 1, TimeUnit.MINUTES);
+
+            if (acceptors > 1) {
+                b.option(transport.reusePort, true);
+            }
+
+            System.out.println("Netty Server starting on port " + PORT + " (" + transport.name
+                    + ", " + acceptors + " acceptor" + (acceptors > 1 ? "s" : "") + ")...");
+            // Each bind lands on the next boss event loop
+            ChannelFuture[] bound = new ChannelFuture[acceptors];
+            for (int i = 0; i < acceptors; i++) {
+                bound[i] = b.bind(PORT).sync();
+            }
+            for (ChannelFuture f : bound) {
+                f.channel().closeFuture().sync();
+            }
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
         }
     }
 
-    public static synchronized void addClient(String username, Channel channel) {
-        clients.put(username, channel);
-        broadcastUserList();
+    // net.allocator: pooled (default) or unpooled; net.preferDirect picks direct or heap buffers
+    private static ByteBufAllocator allocator() {
+        boolean direct = ServerConfig.getBoolean("net.preferDirect", true);
+        String kind = ServerConfig.getString("net.allocator", "pooled").toLowerCase();
+        if (kind.equals("unpooled")) {
+            return new UnpooledByteBufAllocator(direct);
+        }
+        if (!kind.equals("pooled")) {
+            System.err.println("Unknown net.allocator " + kind + ", using pooled");
+        }
+        return new PooledByteBufAllocator(direct);
     }
 
-    public static synchronized void removeClient(String username) {
-        if (username != null && clients.containsKey(username)) {
-            clients.remove(username);
-            broadcastUserList();
+    public static void addClient(String username, Channel channel) {
+        if (SessionRegistry.add(username, channel)) {
+            Presence.changed(username);
         }
     }
-    
+
+    public static void removeClient(String username, Channel channel) {
+        if (SessionRegistry.remove(username, channel)) {
+            Presence.changed(username);
+        }
+    }
+
+    // The user's most recent session
     public static Channel getClient(String username) {
-        return clients.get(username);
+        return SessionRegistry.latest(username);
+    }
+
+    public static Collection<Channel> getAllClients() {
+        return SessionRegistry.channels();
     }
 
     public static void broadcastMessage(Message message) {
-        for (Channel channel : clients.values()) {
-            channel.writeAndFlush(message);
+        fanOut(message, SessionRegistry.channels());
+    }
+
+    // Delivers to every session of the user, returns false if the user is offline
+    public static boolean sendToUser(String username, Message message) {
+        SessionRegistry.Session[] sessions = SessionRegistry.sessionsOf(username);
+        if (sessions.length == 1) {
+            WriteBatcher.write(sessions[0].channel, message);
+        } else if (sessions.length > 1) {
+            List<Channel> channels = new ArrayList<>(sessions.length);
+            addSessions(channels, sessions);
+            fanOut(message, channels);
+        }
+        return sessions.length > 0;
+    }
+
+    private static void addSessions(List<Channel> channels, SessionRegistry.Session[] sessions) {
+        for (SessionRegistry.Session s : sessions) {
+            channels.add(s.channel);
+        }
+    }
+
+    // Serializes the message at most once per wire format and hands every channel a
+    // retained duplicate of the same pooled buffer instead of re-encoding per recipient.
+    static void fanOut(Message message, Collection<Channel> channels) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        ByteBuf json = null;
+        ByteBuf binary = null;
+        try {
+            for (Channel channel : channels) {
+                recipients++;
+                ByteBuf frame;
+                if (MessageFrameCodec.getWireFormat(channel) == WireFormat.BINARY) {
+                    if (binary == null) {
+                        binary = MessageFrameCodec.encode(channel.alloc(), message, WireFormat.BINARY);
+                    }
+                    frame = binary;
+                } else {
+                    if (json == null) {
+                        json = MessageFrameCodec.encode(channel.alloc(), message, WireFormat.JSON);
+                    }
+                    frame = json;
+                }
+                WriteBatcher.write(channel, new OutboundFrame(frame.retainedDuplicate(), message.getType(), message.getSender()));
+            }
+        } finally {
+            if (json != null) json.release();
+            if (binary != null) binary.release();
+            Metrics.FANOUT_RECIPIENTS.add(recipients);
+            Metrics.FANOUT.recordSince(start);
         }
     }
 
     public static void sendPrivateMessage(Message message) {
         // Check friendship
         if (!DatabaseManager.isFriend(message.getSender(), message.getRecipient())) {
-            Channel sender = clients.get(message.getSender());
-            if (sender != null) {
-                Message errorMsg = new Message();
-                errorMsg.setType(MessageType.CHAT_PRIVATE);
-                errorMsg.setSender("System");
-                errorMsg.setRecipient(message.getSender());
-                errorMsg.setContent("Message failed: You are not friends with " + message.getRecipient());
-                sender.writeAndFlush(errorMsg);
-            }
+            sendNotFriendsError(message.getSender(), message.getRecipient());
             return;
         }
 
-        Channel recipient = clients.get(message.getRecipient());
-        if (recipient != null) {
-            recipient.writeAndFlush(message);
-            // Send back to sender
-            Channel sender = clients.get(message.getSender());
-            if (sender != null && !sender.equals(recipient)) {
-                sender.writeAndFlush(message);
+        SessionRegistry.Session[] recipient = SessionRegistry.sessionsOf(message.getRecipient());
+        if (recipient.length > 0) {
+            // Send back to all of the sender's sessions as well, sharing one encoding
+            if (message.getRecipient().equals(message.getSender())) {
+                sendToUser(message.getRecipient(), message);
+                return;
             }
+            SessionRegistry.Session[] sender = SessionRegistry.sessionsOf(message.getSender());
+            List<Channel> channels = new ArrayList<>(recipient.length + sender.length);
+            addSessions(channels, recipient);
+            addSessions(channels, sender);
+            fanOut(message, channels);
+        } else if (OfflineInbox.hold(message.getRecipient(), message)) {
+            // Logged messages wait in the recipient's inbox until the next login
+            sendToUser(message.getSender(), message);
+        } else {
+            sendNotHeldError(message.getSender(), message.getRecipient());
         }
     }
     
+    static void sendNotFriendsError(String sender, String recipient) {
+        sendFailure(sender, "Message failed: You are not friends with " + recipient);
+    }
+
+    // The recipient is offline and the server is too far behind to store the message for them
+    static void sendNotHeldError(String sender, String recipient) {
+        sendFailure(sender, "Message failed: " + recipient + " is offline and it could not be stored, try again later");
+    }
+
+    private static void sendFailure(String sender, String content) {
+        if (SessionRegistry.isOnline(sender)) {
+            Message errorMsg = new Message();
+            errorMsg.setType(MessageType.CHAT_PRIVATE);
+            errorMsg.setSender("System");
+            errorMsg.setRecipient(sender);
+            errorMsg.setContent(content);
+            sendToUser(sender, errorMsg);
+        }
+    }
+
+    // Logs the user out everywhere
     public static void kickClient(String username) {
-        Channel ch = clients.get(username);
-        if (ch != null) {
+        SessionRegistry.Session[] sessions = SessionRegistry.sessionsOf(username);
+        if (sessions.length > 0) {
             Message msg = new Message();
             msg.setType(MessageType.FORCE_LOGOUT);
             msg.setContent("You have been banned/kicked by admin.");
-            ch.writeAndFlush(msg);
-            ch.close();
-            removeClient(username);
+            // Flushed right away, a batched write would be discarded by the close
+            for (SessionRegistry.Session s : sessions) {
+                s.channel.writeAndFlush(msg)
+                        .addListener(ChannelFutureListener.CLOSE)
+                        .addListener(f -> removeClient(username, s.channel));
+            }
         }
     }
     
     public static boolean isUserOnline(String username) {
-        return clients.containsKey(username);
-    }
-
-    private static void broadcastUserList() {
-        Message updateMsg = new Message();
-        updateMsg.setType(MessageType.UPDATE_USERS);
-        List<String> userList = new ArrayList<>(clients.keySet());
-        updateMsg.setOnlineUsers(userList);
-        broadcastMessage(updateMsg);
+        return SessionRegistry.isOnline(username);
     }
 }
@@ -0,0 +1,342 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import com.chat.common.TextOperation;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collaborative editing rooms, each holding the authoritative copy of one shared text.
+ *
+ * A COLLAB_REQUEST without a room opens one, seeded with the request's content, and
+ * invites the recipient; with a room in extraInfo it invites one more friend into it.
+ * Any number of participants can join. Each one is a connection, and whoever joins
+ * gets a COLLAB_SYNC snapshot: the current text and revision, and the participants in
+ * onlineUsers. A participant that lost track asks for another with COLLAB_SYNC.
+ *
+ * Edits arrive as COLLAB_OP based on some earlier revision (see CollabSync). The op is
+ * transformed past the ops applied since then, applied to the text and numbered with
+ * the next revision; the sender gets an ack and everyone else the transformed op,
+ * encoded once for all of them. Only the last collab.history ops are kept, and only
+ * as many as insert collab.historyChars characters between them, since a single op
+ * may insert a whole document. A participant further behind gets a snapshot instead. A room closes when
+ * its last participant leaves, or when only one is left after others had joined.
+ *
+ * Friendship is checked once per invitation. Ops only need the sender to be in the
+ * room, a map lookup. Everything that touches a room runs on one event loop, the one
+ * of the connection that opened it, so no locks are needed and every participant gets
+ * the revisions in the order they were made: writes from one thread reach a channel in
+ * order, where writes from two loops could overtake each other.
+ *
+ * Each connection carries the ids of the rooms it is in, so a disconnect only visits
+ * those rooms instead of all of them.
+ */
+public class CollabHub {
+    private static final int HISTORY = ServerConfig.getInt("collab.history", 1000);
+    private static final int MAX_LENGTH = ServerConfig.getInt("collab.maxLength", 1 << 20);
+    private static final long HISTORY_CHARS = ServerConfig.getLong("collab.historyChars", 4L << 20);
+
+    private static final class Room {
+        final String id;
+        final EventLoop loop;
+        final Map<Channel, String> participants = new LinkedHashMap<>();
+        final Set<String> invited = new HashSet<>();
+        boolean joined; // Someone other than the opener took part
+        String text;
+        long revision;
+        final ArrayDeque<TextOperation> history = new ArrayDeque<>(); // Ops of the last revisions, oldest first
+        long historyChars; // Inserted by the ops in history
+
+        Room(String id, EventLoop loop, String text) {
+            this.id = id;
+            this.loop = loop;
+            this.text = text;
+        }
+    }
+
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Ids of the rooms a connection is in, added to and removed from on those rooms' loops
+    private static final AttributeKey<Set<String>> ROOMS = AttributeKey.valueOf("collabRooms");
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private static final LongAdder ops = new LongAdder();
+    private static final LongAdder resyncs = new LongAdder();
+
+    public static void invite(Channel channel, String user, Message req) {
+        String friend = req.getRecipient();
+        if (friend == null || friend.equals(user)) {
+            return;
+        }
+        if (!DatabaseManager.isFriend(user, friend)) {
+            ChatServer.sendNotFriendsError(user, friend);
+            return;
+        }
+        if (req.getExtraInfo() == null) {
+            String text = req.getContent() != null ? req.getContent() : "";
+            if (text.length() > MAX_LENGTH) {
+                return;
+            }
+            Room opened = new Room(user + "#" + nextId.incrementAndGet(), channel.eventLoop(), text);
+            rooms.put(opened.id, opened);
+            if (!join(opened, channel, user)) {
+                rooms.remove(opened.id);
+                return;
+            }
+            sendSnapshot(opened, channel, friend);
+            invite(opened, user, friend);
+        } else {
+            Room room = rooms.get(req.getExtraInfo());
+            if (room != null) {
+                room.loop.execute(() -> {
+                    if (room.participants.containsKey(channel)) {
+                        invite(room, user, friend);
+                    }
+                });
+            }
+        }
+    }
+
+    // On the room's loop
+    private static void invite(Room room, String user, String friend) {
+        room.invited.add(friend);
+        Message invitation = new Message();
+        invitation.setType(MessageType.COLLAB_REQUEST);
+        invitation.setSender(user);
+        invitation.setRecipient(friend);
+        invitation.setExtraInfo(room.id);
+        ChatServer.sendToUser(friend, invitation);
+    }
+
+    // A snapshot for the one who accepted, the ACCEPT for the one who invited
+    public static void accept(Channel channel, String user, Message msg) {
+        Room room = msg.getExtraInfo() != null ? rooms.get(msg.getExtraInfo()) : null;
+        if (room == null) {
+            sendEnd(channel, msg.getExtraInfo(), msg.getRecipient(), true); // Closed in the meantime
+            return;
+        }
+        room.loop.execute(() -> {
+            if (!room.invited.remove(user) || !rooms.containsKey(room.id)) {
+                return;
+            }
+            if (!join(room, channel, user)) {
+                return;
+            }
+            room.joined = true;
+            sendSnapshot(room, channel, msg.getRecipient());
+            Message accepted = new Message();
+            accepted.setType(MessageType.COLLAB_ACCEPT);
+            accepted.setSender(user);
+            accepted.setRecipient(msg.getRecipient());
+            accepted.setExtraInfo(room.id);
+            ChatServer.sendToUser(msg.getRecipient(), accepted);
+        });
+    }
+
+    public static void deny(String user, Message msg) {
+        Room room = msg.getExtraInfo() != null ? rooms.get(msg.getExtraInfo()) : null;
+        if (room != null) {
+            room.loop.execute(() -> room.invited.remove(user));
+        }
+        Message denied = new Message();
+        denied.setType(MessageType.COLLAB_DENY);
+        denied.setSender(user);
+        denied.setRecipient(msg.getRecipient());
+        denied.setExtraInfo(msg.getExtraInfo());
+        ChatServer.sendToUser(msg.getRecipient(), denied);
+    }
+
+    public static void resync(Channel channel, Message msg) {
+        Room room = msg.getExtraInfo() != null ? rooms.get(msg.getExtraInfo()) : null;
+        if (room == null) {
+            return;
+        }
+        room.loop.execute(() -> {
+            if (room.participants.containsKey(channel)) {
+                resyncs.increment();
+                sendSnapshot(room, channel, null);
+            }
+        });
+    }
+
+    public static void op(Channel channel, String user, Message msg) {
+        Room room = msg.getExtraInfo() != null ? rooms.get(msg.getExtraInfo()) : null;
+        if (room == null) {
+            return;
+        }
+        room.loop.execute(() -> apply(room, channel, user, msg));
+    }
+
+    // On the room's loop
+    private static void apply(Room room, Channel channel, String user, Message msg) {
+        if (!room.participants.containsKey(channel)) {
+            return;
+        }
+        TextOperation op;
+        try {
+            op = rebase(room, msg.getSeq(), TextOperation.fromList(msg.getOnlineUsers()));
+        } catch (RuntimeException e) { // Malformed, or made on a text we no longer know
+            op = null;
+        }
+        if (op == null || op.targetLength() > MAX_LENGTH) {
+            resyncs.increment();
+            sendSnapshot(room, channel, null); // The edit is lost, the sender starts over from ours
+            return;
+        }
+        room.text = op.apply(room.text);
+        room.revision++;
+        room.history.add(op);
+        room.historyChars += op.insertedLength();
+        while (room.history.size() > HISTORY || room.historyChars > HISTORY_CHARS) {
+            room.historyChars -= room.history.poll().insertedLength();
+        }
+        ops.increment();
+
+        Message ack = new Message();
+        ack.setType(MessageType.COLLAB_OP);
+        ack.setExtraInfo(room.id);
+        ack.setSeq(room.revision);
+        WriteBatcher.write(channel, ack);
+
+        if (room.participants.size() > 1) {
+            Message applied = new Message();
+            applied.setType(MessageType.COLLAB_OP);
+            applied.setSender(user);
+            applied.setExtraInfo(room.id);
+            applied.setSeq(room.revision);
+            applied.setOnlineUsers(op.toList());
+            List<Channel> others = new ArrayList<>(room.participants.size() - 1);
+            for (Channel ch : room.participants.keySet()) {
+                if (ch != channel) others.add(ch);
+            }
+            ChatServer.fanOut(applied, others);
+        }
+    }
+
+    // op made on revision base, transformed to apply to the current text; null if base is out of reach
+    private static TextOperation rebase(Room room, Long base, TextOperation op) {
+        if (base == null || base > room.revision || room.revision - base > room.history.size()) {
+            return null;
+        }
+        int skip = room.history.size() - (int) (room.revision - base);
+        Iterator<TextOperation> it = room.history.iterator();
+        for (int i = 0; i < skip; i++) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            op = TextOperation.transform(op, it.next())[0]; // The later edit's text goes first on ties
+        }
+        return op.baseLength() == room.text.length() ? op : null;
+    }
+
+    public static void leave(Channel channel, String user, Message msg) {
+        Room room = msg.getExtraInfo() != null ? rooms.get(msg.getExtraInfo()) : null;
+        if (room != null) {
+            leave(room, channel, user);
+        }
+    }
+
+    // The connection closed, it leaves every room it was in
+    public static void leaveAll(Channel channel, String user) {
+        Set<String> joined = channel.attr(ROOMS).get();
+        if (joined == null) {
+            return;
+        }
+        for (String id : joined) {
+            Room room = rooms.get(id);
+            if (room != null) {
+                leave(room, channel, user);
+            }
+        }
+    }
+
+    private static void leave(Room room, Channel channel, String user) {
+        room.loop.execute(() -> {
+            if (room.participants.remove(channel) == null) {
+                return;
+            }
+            roomsOf(channel).remove(room.id);
+            boolean closed = room.participants.isEmpty() || (room.joined && room.participants.size() == 1);
+            if (closed) {
+                rooms.remove(room.id);
+            }
+            for (Channel ch : room.participants.keySet()) {
+                if (closed) {
+                    roomsOf(ch).remove(room.id);
+                }
+                sendEnd(ch, room.id, user, closed);
+            }
+        });
+    }
+
+    // On the room's loop; false if the connection is already gone
+    private static boolean join(Room room, Channel channel, String user) {
+        // Noted on the channel first: a leaveAll that misses it runs after the close, which we then see
+        Set<String> joined = roomsOf(channel);
+        joined.add(room.id);
+        if (!channel.isActive()) {
+            joined.remove(room.id);
+            return false;
+        }
+        room.participants.put(channel, user);
+        return true;
+    }
+
+    private static Set<String> roomsOf(Channel channel) {
+        Set<String> joined = channel.attr(ROOMS).get();
+        if (joined == null) {
+            Set<String> created = ConcurrentHashMap.newKeySet();
+            joined = channel.attr(ROOMS).setIfAbsent(created);
+            if (joined == null) {
+                joined = created;
+            }
+        }
+        return joined;
+    }
+
+    // COLLAB_END from user, with content "CLOSED" when the room is gone
+    private static void sendEnd(Channel channel, String roomId, String user, boolean closed) {
+        Message end = new Message();
+        end.setType(MessageType.COLLAB_END);
+        end.setSender(user);
+        end.setExtraInfo(roomId);
+        end.setContent(closed ? "CLOSED" : null);
+        WriteBatcher.write(channel, end);
+    }
+
+    // peer tells the client which of its conversations the room belongs to, null on a resync
+    private static void sendSnapshot(Room room, Channel channel, String peer) {
+        Message snapshot = new Message();
+        snapshot.setType(MessageType.COLLAB_SYNC);
+        snapshot.setRecipient(peer);
+        snapshot.setExtraInfo(room.id);
+        snapshot.setContent(room.text);
+        snapshot.setSeq(room.revision);
+        snapshot.setOnlineUsers(new ArrayList<>(room.participants.values()));
+        WriteBatcher.write(channel, snapshot);
+    }
+
+    public static int roomCount() {
+        return rooms.size();
+    }
+
+    public static long getOps() { return ops.sum(); }
+    public static long getResyncs() { return resyncs.sum(); }
+
+    public static String stats() {
+        return "rooms=" + rooms.size() + " ops=" + ops.sum() + " resyncs=" + resyncs.sum();
+    }
+}
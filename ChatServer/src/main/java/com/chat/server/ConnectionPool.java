@@ -0,0 +1,158 @@
+package com.chat.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size pool of SQLite connections opened once at startup.
+ *
+ * Every connection runs in WAL mode with synchronous=NORMAL, so readers never wait for
+ * the writer and commits skip most fsyncs, and keeps the statements it has prepared so
+ * each SQL string is parsed once per connection instead of once per call.
+ */
+public class ConnectionPool {
+    private static final long BORROW_TIMEOUT_MS = 30_000;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    // Metrics
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder holdNanos = new LongAdder();
+    private final AtomicLong maxHoldNanos = new AtomicLong();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection conn = DriverManager.getConnection(url);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL");
+                stmt.execute("PRAGMA synchronous=NORMAL");
+                stmt.execute("PRAGMA busy_timeout=5000"); // Wait for the write lock instead of failing
+            }
+            PooledConnection pc = new PooledConnection(conn);
+            all.add(pc);
+            idle.add(pc);
+        }
+    }
+
+    public PooledConnection borrow() throws SQLException {
+        borrows.increment();
+        PooledConnection pc = idle.poll();
+        if (pc == null) {
+            contended.increment();
+            long start = System.nanoTime();
+            try {
+                pc = idle.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            updateMax(maxWaitNanos, waited);
+            if (pc == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        }
+        pc.borrowedAt = System.nanoTime();
+        return pc;
+    }
+
+    private void release(PooledConnection pc) {
+        long held = System.nanoTime() - pc.borrowedAt;
+        holdNanos.add(held);
+        updateMax(maxHoldNanos, held);
+        idle.offer(pc);
+    }
+
+    public int getSize() {
+        return all.size();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public String stats() {
+        long n = Math.max(1, borrows.sum());
+        long waits = contended.sum();
+        return "size=" + all.size()
+                + " idle=" + idle.size()
+                + " borrows=" + borrows.sum()
+                + " contended=" + waits
+                + " avgWaitUs=" + (waits == 0 ? 0 : waitNanos.sum() / waits / 1000)
+                + " maxWaitUs=" + maxWaitNanos.get() / 1000
+                + " avgHoldUs=" + holdNanos.sum() / n / 1000
+                + " maxHoldUs=" + maxHoldNanos.get() / 1000
+                + " stmtHits=" + statementHits.sum()
+                + " stmtMisses=" + statementMisses.sum();
+    }
+
+    public void close() {
+        for (PooledConnection pc : all) {
+            try {
+                pc.conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /** A borrowed connection; close() hands it back to the pool. Not thread-safe. */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long borrowedAt;
+
+        private PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                statementMisses.increment();
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                statementHits.increment();
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+        public Connection getConnection() {
+            return conn;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
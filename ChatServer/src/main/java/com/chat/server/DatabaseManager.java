@@ -1,15 +1,114 @@
 package com.chat.server;
 
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+
+import java.lang.reflect.Method;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class DatabaseManager {
-    private static final String DB_URL = "jdbc:sqlite:chat.db";
+    // A throwaway database for benchmarks and tests can be picked with -Ddb.url=...
+    private static final String DB_URL = ServerConfig.getString("db.url", "jdbc:sqlite:chat.db");
+    private static final int POOL_SIZE = 4;
+
+    // Requests waiting for or running on a database thread before new ones are refused
+    private static final int QUEUE_LIMIT = 10_000;
+
+    // Opened in init(), every query borrows a connection and reuses its prepared statements
+    private static ConnectionPool pool;
+
+    // Runs the *Async variants, so SQLite never blocks a Netty event loop
+    private static final Executor executor = newExecutor();
+
+    // Virtual threads when the JVM has them (the pool still bounds concurrent queries),
+    // otherwise one platform thread per pooled connection
+    private static Executor newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return bounded((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_LIMIT), r -> {
+                        Thread t = new Thread(r, "db-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+    }
+
+    // A virtual thread per task never queues, so the limit counts tasks not yet finished
+    private static Executor bounded(ExecutorService threads) {
+        Semaphore permits = new Semaphore(QUEUE_LIMIT);
+        return task -> {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Database queue full");
+            }
+            try {
+                threads.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        };
+    }
+
+    // op names the call in the chat_db_call_seconds metric
+    public static <T> CompletableFuture<T> supplyAsync(String op, Supplier<T> task) {
+        Metrics.Latency latency = Metrics.dbCall(op);
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                Metrics.DB_QUEUE_WAIT.record(start - submitted);
+                try {
+                    return task.get();
+                } finally {
+                    latency.recordSince(start);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public static CompletableFuture<Void> runAsync(String op, Runnable task) {
+        return supplyAsync(op, () -> {
+            task.run();
+            return null;
+        });
+    }
 
     public static void init() {
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement()) {
+        try {
+            pool = new ConnectionPool(DB_URL, POOL_SIZE);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot open " + DB_URL, e);
+        }
+
+        try (ConnectionPool.PooledConnection conn = pool.borrow();
+             Statement stmt = conn.getConnection().createStatement()) {
             
             // Users table
             String sqlUsers = "CREATE TABLE IF NOT EXISTS users (" +
@@ -34,25 +133,60 @@ public class DatabaseManager {
                                 "status TEXT, " + // 'ACCEPTED', 'PENDING'
                                 "PRIMARY KEY (user1, user2))";
             stmt.execute(sqlFriends);
+
+            // Message log, append-only. seq is assigned by MessageLog and doubles as the page cursor
+            String sqlMessages = "CREATE TABLE IF NOT EXISTS messages (" +
+                                 "seq INTEGER PRIMARY KEY, " +
+                                 "conversation TEXT NOT NULL, " + // 'All' or a friend pair, see MessageLog
+                                 "type TEXT NOT NULL, " +
+                                 "sender TEXT, " +
+                                 "recipient TEXT, " +
+                                 "content TEXT, " +
+                                 "file_name TEXT, " +
+                                 "blob_id TEXT, " +
+                                 "total_size INTEGER, " +
+                                 "created_at INTEGER NOT NULL)";
+            stmt.execute(sqlMessages);
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_conversation ON messages(conversation, seq)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_blob ON messages(blob_id) WHERE blob_id IS NOT NULL");
+
+            // Offline inbox: logged messages a user has not received yet
+            String sqlInbox = "CREATE TABLE IF NOT EXISTS inbox (" +
+                              "recipient TEXT NOT NULL, " +
+                              "seq INTEGER NOT NULL, " + // messages.seq
+                              "PRIMARY KEY (recipient, seq)) WITHOUT ROWID";
+            stmt.execute(sqlInbox);
             
             // Create Admin Account
             registerUser("mikulight", "tian20051008");
 
+            // Friendship checks are answered from memory from now on
+            loadFriendGraph(conn);
+            // And so are logins of known users and the admin user list
+            loadUsers(conn);
+
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    // Pool metrics for the periodic server log
+    public static String getPoolStats() {
+        return pool != null ? pool.stats() : "not initialized";
+    }
+
     public static boolean registerUser(String username, String password) {
         String sql = "INSERT INTO users(username, password, avatar_color, is_banned) VALUES(?,?,?,0)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, username);
             pstmt.setString(2, password);
             // Default random color
             String color = String.format("#%06x", (int)(Math.random() * 0xFFFFFF));
             pstmt.setString(3, color);
             pstmt.executeUpdate();
+            UserProfiles.put(username, new UserProfiles.Profile(password, color, false));
+            UserDirectory.put(username, false);
             return true;
         } catch (SQLException e) {
             return false; // Username likely exists
@@ -60,27 +194,19 @@ public class DatabaseManager {
     }
     
     public static boolean isBanned(String username) {
-        String sql = "SELECT is_banned FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("is_banned") == 1;
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
+        UserProfiles.Profile p = getProfile(username);
+        return p != null && p.banned;
     }
     
     public static void setBanned(String username, boolean banned) {
         String sql = "UPDATE users SET is_banned = ? WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setInt(1, banned ? 1 : 0);
             pstmt.setString(2, username);
             pstmt.executeUpdate();
+            UserProfiles.setBanned(username, banned);
+            UserDirectory.setBanned(username, banned);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -89,62 +215,227 @@ public class DatabaseManager {
     public static void deleteUser(String username) {
         String sqlUsers = "DELETE FROM users WHERE username = ?";
         String sqlFriends = "DELETE FROM friends WHERE user1 = ? OR user2 = ?";
+        String sqlInbox = "DELETE FROM inbox WHERE recipient = ?";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
             // Delete from users
-            try (PreparedStatement pstmt = conn.prepareStatement(sqlUsers)) {
-                pstmt.setString(1, username);
-                pstmt.executeUpdate();
-            }
+            PreparedStatement pstmt = conn.prepare(sqlUsers);
+            pstmt.setString(1, username);
+            pstmt.executeUpdate();
+            UserProfiles.remove(username);
+            UserDirectory.remove(username);
             
             // Delete from friends
-            try (PreparedStatement pstmt = conn.prepareStatement(sqlFriends)) {
-                pstmt.setString(1, username);
-                pstmt.setString(2, username);
-                pstmt.executeUpdate();
-            }
+            pstmt = conn.prepare(sqlFriends);
+            pstmt.setString(1, username);
+            pstmt.setString(2, username);
+            pstmt.executeUpdate();
+            FriendGraph.removeUser(username);
+
+            // Drop undelivered messages
+            pstmt = conn.prepare(sqlInbox);
+            pstmt.setString(1, username);
+            pstmt.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
     
-    // Returns list of "username:isBanned"
-    public static List<String> getAllUsersStatus() {
-        List<String> list = new ArrayList<>();
-        String sql = "SELECT username, is_banned FROM users";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                String u = rs.getString("username");
-                int b = rs.getInt("is_banned");
-                list.add(u + ":" + b);
+    public static long getLastMessageSeq() {
+        String sql = "SELECT MAX(seq) FROM messages";
+        try (ConnectionPool.PooledConnection conn = pool.borrow();
+             ResultSet rs = conn.prepare(sql).executeQuery()) {
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    // Writes a batch of log and inbox entries in one transaction
+    public static boolean appendMessages(List<Message> batch, List<MessageLog.InboxEntry> inbox) {
+        String sql = "INSERT OR IGNORE INTO messages(seq, conversation, type, sender, recipient, content, " +
+                     "file_name, blob_id, total_size, created_at) VALUES(?,?,?,?,?,?,?,?,?,?)";
+        String sqlInbox = "INSERT OR IGNORE INTO inbox(recipient, seq) VALUES(?,?)";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = conn.prepare(sql);
+                for (Message m : batch) {
+                    pstmt.setLong(1, m.getSeq());
+                    pstmt.setString(2, MessageLog.conversationOf(m));
+                    pstmt.setString(3, m.getType().name());
+                    pstmt.setString(4, m.getSender());
+                    pstmt.setString(5, m.getRecipient());
+                    pstmt.setString(6, m.getContent());
+                    pstmt.setString(7, m.getFileName());
+                    pstmt.setString(8, m.getBlobId());
+                    pstmt.setObject(9, m.getTotalSize());
+                    pstmt.setLong(10, m.getTimestamp());
+                    pstmt.addBatch();
+                }
+                if (!batch.isEmpty()) {
+                    pstmt.executeBatch();
+                }
+                if (!inbox.isEmpty()) {
+                    pstmt = conn.prepare(sqlInbox);
+                    for (MessageLog.InboxEntry entry : inbox) {
+                        pstmt.setString(1, entry.recipient);
+                        pstmt.setLong(2, entry.seq);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                c.commit();
+                return true;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Up to limit entries of a conversation older than beforeSeq (null = newest), newest first
+    public static List<Message> getHistory(String conversation, Long beforeSeq, int limit) {
+        List<Message> page = new ArrayList<>();
+        String sql = "SELECT seq, type, sender, recipient, content, file_name, blob_id, total_size, created_at " +
+                     "FROM messages WHERE conversation = ? AND seq < ? ORDER BY seq DESC LIMIT ?";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, conversation);
+            pstmt.setLong(2, beforeSeq != null ? beforeSeq : Long.MAX_VALUE);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    page.add(readLoggedMessage(rs));
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return list;
+        return page;
+    }
+
+    // Up to limit inbox messages of a user after afterSeq, oldest first
+    public static List<Message> getInbox(String username, long afterSeq, int limit) {
+        List<Message> page = new ArrayList<>();
+        String sql = "SELECT m.seq, m.type, m.sender, m.recipient, m.content, m.file_name, m.blob_id, " +
+                     "m.total_size, m.created_at FROM inbox i JOIN messages m ON m.seq = i.seq " +
+                     "WHERE i.recipient = ? AND i.seq > ? ORDER BY i.seq LIMIT ?";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, username);
+            pstmt.setLong(2, afterSeq);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    page.add(readLoggedMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return page;
+    }
+
+    // Whether a logged message carrying blobId was sent by or to username, or posted to 'All'
+    public static boolean canReadBlob(String username, String blobId) {
+        String sql = "SELECT 1 FROM messages WHERE blob_id = ? " +
+                     "AND (conversation = 'All' OR sender = ? OR recipient = ?) LIMIT 1";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, blobId);
+            pstmt.setString(2, username);
+            pstmt.setString(3, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static void deleteInbox(String username, long upToSeq) {
+        String sql = "DELETE FROM inbox WHERE recipient = ? AND seq <= ?";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, username);
+            pstmt.setLong(2, upToSeq);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Message readLoggedMessage(ResultSet rs) throws SQLException {
+        Message m = new Message();
+        m.setSeq(rs.getLong("seq"));
+        m.setType(MessageType.valueOf(rs.getString("type")));
+        m.setSender(rs.getString("sender"));
+        m.setRecipient(rs.getString("recipient"));
+        m.setContent(rs.getString("content"));
+        m.setFileName(rs.getString("file_name"));
+        m.setBlobId(rs.getString("blob_id"));
+        long size = rs.getLong("total_size");
+        m.setTotalSize(rs.wasNull() ? null : size);
+        m.setTimestamp(rs.getLong("created_at"));
+        return m;
     }
 
     public static boolean checkLogin(String username, String password) {
-        String sql = "SELECT password FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        UserProfiles.Profile p = getProfile(username);
+        return p != null && p.password.equals(password);
+    }
+
+    // Everything a login needs, from UserProfiles or else one query. Null if there is no such user.
+    public static UserProfiles.Profile getProfile(String username) {
+        UserProfiles.Profile p = UserProfiles.get(username);
+        if (p != null) {
+            return p;
+        }
+        long stamp = UserProfiles.stamp();
+        p = loadProfile(username);
+        if (p != null) {
+            UserProfiles.putIfUnchanged(username, p, stamp);
+        }
+        return p;
+    }
+
+    // Straight from the database, bypassing UserProfiles
+    public static UserProfiles.Profile loadProfile(String username) {
+        String sql = "SELECT password, avatar_color, is_banned FROM users WHERE username = ?";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("password").equals(password);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return readProfile(rs);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;
+        return null;
+    }
+
+    private static UserProfiles.Profile readProfile(ResultSet rs) throws SQLException {
+        return new UserProfiles.Profile(rs.getString("password"), rs.getString("avatar_color"),
+                rs.getInt("is_banned") == 1);
     }
 
     public static void updateAvatar(String username, byte[] image) {
         String sql = "UPDATE users SET avatar_image = ? WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setBytes(1, image);
             pstmt.setString(2, username);
             pstmt.executeUpdate();
@@ -155,12 +446,13 @@ public class DatabaseManager {
 
     public static byte[] getAvatar(String username) {
         String sql = "SELECT avatar_image FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBytes("avatar_image");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getBytes("avatar_image");
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -169,18 +461,8 @@ public class DatabaseManager {
     }
     
     public static String getAvatarColor(String username) {
-        String sql = "SELECT avatar_color FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("avatar_color");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return "#CCCCCC"; // Default fallback
+        UserProfiles.Profile p = getProfile(username);
+        return p != null && p.avatarColor != null ? p.avatarColor : "#CCCCCC"; // Default fallback
     }
 
     public static boolean addFriendRequest(String fromUser, String toUser) {
@@ -188,8 +470,8 @@ public class DatabaseManager {
         if (!userExists(toUser)) return false;
         
         String sql = "INSERT OR IGNORE INTO friends(user1, user2, status) VALUES(?,?,?)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             // Store as (min, max) to avoid duplicates, or just directional?
             // Let's do directional for requests: user1 asks user2
             pstmt.setString(1, fromUser);
@@ -208,9 +490,9 @@ public class DatabaseManager {
         // Also insert the reverse relationship for easier querying
         String sqlInsert = "INSERT OR IGNORE INTO friends(user1, user2, status) VALUES(?, ?, 'ACCEPTED')";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmtUpdate = conn.prepareStatement(sqlUpdate);
-             PreparedStatement pstmtInsert = conn.prepareStatement(sqlInsert)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmtUpdate = conn.prepare(sqlUpdate);
+            PreparedStatement pstmtInsert = conn.prepare(sqlInsert);
             
             pstmtUpdate.setString(1, requester);
             pstmtUpdate.setString(2, accepter);
@@ -219,7 +501,10 @@ public class DatabaseManager {
             pstmtInsert.setString(1, accepter);
             pstmtInsert.setString(2, requester);
             pstmtInsert.executeUpdate();
-            
+
+            // Either row may have been left untouched, mirror what is actually stored
+            syncFriendEdge(conn, requester, accepter);
+            syncFriendEdge(conn, accepter, requester);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -227,55 +512,140 @@ public class DatabaseManager {
 
     public static void deleteFriend(String user1, String user2) {
         String sql = "DELETE FROM friends WHERE (user1 = ? AND user2 = ?) OR (user1 = ? AND user2 = ?)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, user1);
             pstmt.setString(2, user2);
             pstmt.setString(3, user2);
             pstmt.setString(4, user1);
             pstmt.executeUpdate();
+            FriendGraph.remove(user1, user2);
+            FriendGraph.remove(user2, user1);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    // Answered from FriendGraph, no database access
     public static boolean isFriend(String user1, String user2) {
-        String sql = "SELECT 1 FROM friends WHERE user1 = ? AND user2 = ? AND status = 'ACCEPTED'";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, user1);
-            pstmt.setString(2, user2);
-            return pstmt.executeQuery().next();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return FriendGraph.isFriend(user1, user2);
     }
 
     public static List<String> getFriends(String username) {
-        List<String> friends = new ArrayList<>();
-        String sql = "SELECT user2 FROM friends WHERE user1 = ? AND status = 'ACCEPTED'";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
+        return FriendGraph.getFriends(username);
+    }
+
+    private static void loadFriendGraph(ConnectionPool.PooledConnection conn) throws SQLException {
+        String sql = "SELECT user1, user2 FROM friends WHERE status = 'ACCEPTED'";
+        FriendGraph.clear();
+        try (ResultSet rs = conn.prepare(sql).executeQuery()) {
             while (rs.next()) {
-                friends.add(rs.getString("user2"));
+                FriendGraph.add(rs.getString("user1"), rs.getString("user2"));
+            }
+        }
+    }
+
+    private static void loadUsers(ConnectionPool.PooledConnection conn) throws SQLException {
+        String sql = "SELECT username, password, avatar_color, is_banned FROM users";
+        UserProfiles.clear();
+        UserDirectory.clear();
+        try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+            while (rs.next()) {
+                String username = rs.getString("username");
+                UserProfiles.Profile profile = readProfile(rs);
+                UserProfiles.put(username, profile);
+                UserDirectory.put(username, profile.banned);
+            }
+        }
+    }
+
+    private static void syncFriendEdge(ConnectionPool.PooledConnection conn, String user1, String user2)
+            throws SQLException {
+        String sql = "SELECT 1 FROM friends WHERE user1 = ? AND user2 = ? AND status = 'ACCEPTED'";
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setString(1, user1);
+        pstmt.setString(2, user2);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                FriendGraph.add(user1, user2);
+            } else {
+                FriendGraph.remove(user1, user2);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return friends;
     }
     
     private static boolean userExists(String username) {
         String sql = "SELECT 1 FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, username);
-            return pstmt.executeQuery().next();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
         } catch (SQLException e) {
             return false;
         }
     }
+
+    // Async variants, completed on a database thread
+
+    public static CompletableFuture<Boolean> registerUserAsync(String username, String password) {
+        return supplyAsync("registerUser", () -> registerUser(username, password));
+    }
+
+    public static CompletableFuture<Boolean> isBannedAsync(String username) {
+        return supplyAsync("isBanned", () -> isBanned(username));
+    }
+
+    public static CompletableFuture<Void> setBannedAsync(String username, boolean banned) {
+        return runAsync("setBanned", () -> setBanned(username, banned));
+    }
+
+    public static CompletableFuture<Void> deleteUserAsync(String username) {
+        return runAsync("deleteUser", () -> deleteUser(username));
+    }
+
+    public static CompletableFuture<List<Message>> getHistoryAsync(String conversation, Long beforeSeq, int limit) {
+        return supplyAsync("getHistory", () -> getHistory(conversation, beforeSeq, limit));
+    }
+
+    public static CompletableFuture<List<Message>> getInboxAsync(String username, long afterSeq, int limit) {
+        return supplyAsync("getInbox", () -> getInbox(username, afterSeq, limit));
+    }
+
+    public static CompletableFuture<Boolean> canReadBlobAsync(String username, String blobId) {
+        return supplyAsync("canReadBlob", () -> canReadBlob(username, blobId));
+    }
+
+    public static CompletableFuture<Void> deleteInboxAsync(String username, long upToSeq) {
+        return runAsync("deleteInbox", () -> deleteInbox(username, upToSeq));
+    }
+
+    public static CompletableFuture<Boolean> checkLoginAsync(String username, String password) {
+        return supplyAsync("checkLogin", () -> checkLogin(username, password));
+    }
+
+    public static CompletableFuture<Void> updateAvatarAsync(String username, byte[] image) {
+        return runAsync("updateAvatar", () -> updateAvatar(username, image));
+    }
+
+    public static CompletableFuture<byte[]> getAvatarAsync(String username) {
+        return supplyAsync("getAvatar", () -> getAvatar(username));
+    }
+
+    public static CompletableFuture<String> getAvatarColorAsync(String username) {
+        return supplyAsync("getAvatarColor", () -> getAvatarColor(username));
+    }
+
+    public static CompletableFuture<Boolean> addFriendRequestAsync(String fromUser, String toUser) {
+        return supplyAsync("addFriendRequest", () -> addFriendRequest(fromUser, toUser));
+    }
+
+    public static CompletableFuture<Void> acceptFriendAsync(String requester, String accepter) {
+        return runAsync("acceptFriend", () -> acceptFriend(requester, accepter));
+    }
+
+    public static CompletableFuture<Void> deleteFriendAsync(String user1, String user2) {
+        return runAsync("deleteFriend", () -> deleteFriend(user1, user2));
+    }
 }
@@ -0,0 +1,371 @@
+package com.chat.server;
+
+import com.chat.common.FileChunkInput;
+import com.chat.common.Message;
+import com.chat.common.MessageFrameCodec;
+import com.chat.common.MessageType;
+import com.chat.common.WireFormat;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves FILE/IMAGE payloads through the {@link BlobStore} instead of relaying the bytes.
+ *
+ * Uploads arrive as in-order FILE_CHUNK streams (binary clients) or whole messages
+ * (legacy clients) and are stored once per content hash. Recipients get a reference
+ * carrying the blobId and fetch the bytes with BLOB_REQUEST when they need them,
+ * optionally just a byte range. Legacy JSON recipients cannot fetch, so they still
+ * get small payloads inline.
+ *
+ * Chunks out of order are answered with a RESUME ack carrying the offset the sender
+ * has to restart from, which is also how an interrupted upload is resumed.
+ *
+ * A blob is only served to users who sent or received a message carrying it, or could
+ * read it in the public room. The same check guards the upload shortcut: a sender who
+ * names a stored hash is only spared the upload if it may read that blob already, so
+ * knowing a hash neither fetches the content nor tells whether anyone uploaded it.
+ *
+ * Offsets are checked on the event loop, but spooling, hashing, moving a finished blob
+ * into place and opening blobs run on BlobStore.IO, in order since it is a single
+ * thread. Acks and the published reference go back through the sender's event loop.
+ */
+public class FileTransferManager {
+    public static final long MAX_FILE_SIZE = 512L * 1024 * 1024;
+    // Roughly what still fits the 10 MB frame limit once Gson has turned it into a number array
+    private static final long LEGACY_INLINE_LIMIT = 2L * 1024 * 1024;
+    private static final long ACK_INTERVAL = 1024 * 1024;
+    private static final long STALE_AFTER_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // By user and the client's transferId, so two users can never end up in one upload
+    private static final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private static class Upload {
+        final String sender;
+        final String recipient;
+        final String fileName;
+        final MessageType kind;
+        final long totalSize;
+        BlobStore.Upload spool; // Only touched on BlobStore.IO, like discarded
+        boolean discarded;
+        long received; // Bytes accepted so far, spooled or queued for it
+        boolean done;
+        boolean rewindSent;
+        long lastAck;
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Upload(String sender, Message first) {
+            this.sender = sender;
+            this.recipient = first.getRecipient();
+            this.fileName = first.getFileName();
+            this.kind = "IMAGE".equals(first.getExtraInfo()) ? MessageType.IMAGE : MessageType.FILE;
+            this.totalSize = first.getTotalSize();
+        }
+    }
+
+    public static void onChunk(Channel senderChannel, String username, Message chunk) {
+        String id = chunk.getTransferId();
+        if (username == null || id == null || chunk.getOffset() == null || chunk.getTotalSize() == null
+                || chunk.getFileData() == null) {
+            return;
+        }
+
+        String key = username + "/" + id;
+        Upload u = uploads.get(key);
+        if (u == null) {
+            if (chunk.getTotalSize() <= 0 || chunk.getTotalSize() > MAX_FILE_SIZE) {
+                sendAck(senderChannel, id, 0, "ABORT");
+                return;
+            }
+            u = new Upload(username, chunk);
+            if (!isBroadcast(u.recipient) && !DatabaseManager.isFriend(username, u.recipient)) {
+                ChatServer.sendNotFriendsError(username, u.recipient);
+                sendAck(senderChannel, id, 0, "ABORT");
+                return;
+            }
+            uploads.put(key, u);
+
+            if (chunk.getOffset() == 0 && BlobStore.isValidId(chunk.getBlobId())) {
+                skipIfKnown(senderChannel, key, id, u, chunk.getBlobId());
+            }
+        }
+        u.lastActivity = System.currentTimeMillis();
+        if (u.done) {
+            return; // Chunks that were already in flight when we finished early
+        }
+
+        long expected = u.received;
+        if (chunk.getOffset() != expected) {
+            // Ask once, chunks already in flight from the old position are dropped silently
+            if (!u.rewindSent) {
+                u.rewindSent = true;
+                sendAck(senderChannel, id, expected, "RESUME");
+            }
+            return;
+        }
+        u.rewindSent = false;
+        if (expected + chunk.getFileData().length > u.totalSize) {
+            abort(senderChannel, key, id, u);
+            return;
+        }
+
+        byte[] data = chunk.getFileData();
+        u.received += data.length;
+        boolean last = u.received == u.totalSize;
+        long ackAt = -1;
+        if (last) {
+            u.done = true;
+        } else if (u.received - u.lastAck >= ACK_INTERVAL) {
+            ackAt = u.lastAck = u.received;
+        }
+        spool(senderChannel, key, id, u, data, last, ackAt);
+    }
+
+    // Appends data on BlobStore.IO, then commits if it was the last chunk or acks at ackAt (-1 for no ack)
+    private static void spool(Channel senderChannel, String key, String id, Upload u, byte[] data,
+                              boolean last, long ackAt) {
+        BlobStore.IO.execute(() -> {
+            if (u.discarded) {
+                return; // Finished early or aborted, the rest of the stream is not needed
+            }
+            try {
+                if (u.spool == null) {
+                    u.spool = BlobStore.beginUpload();
+                }
+                u.spool.append(data);
+                if (last) {
+                    String blobId = u.spool.commit();
+                    senderChannel.eventLoop().execute(() -> complete(senderChannel, id, u, blobId));
+                } else if (ackAt >= 0) {
+                    sendAck(senderChannel, id, ackAt, null); // Only once the bytes are on disk
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                senderChannel.eventLoop().execute(() -> abort(senderChannel, key, id, u));
+            }
+        });
+    }
+
+    // Ends the upload at once if its sender may read the content it names already, e.g. when
+    // forwarding a file it was sent. Chunks keep being spooled until the check is back.
+    private static void skipIfKnown(Channel senderChannel, String key, String id, Upload u, String blobId) {
+        mayRead(u.sender, blobId)
+                .thenApplyAsync(ok -> ok ? sizeOf(blobId) : -1L, BlobStore.IO)
+                .thenAccept(size -> senderChannel.eventLoop().execute(() -> {
+                    if (size == u.totalSize && !u.done && uploads.get(key) == u) {
+                        discardSpool(u);
+                        complete(senderChannel, id, u, blobId);
+                    }
+                }));
+    }
+
+    // Whole-file FILE/IMAGE messages from legacy clients
+    public static void onWholeFile(Channel senderChannel, String username, Message msg) {
+        if (username == null || msg.getFileData() == null) {
+            return;
+        }
+        if (!isBroadcast(msg.getRecipient()) && !DatabaseManager.isFriend(username, msg.getRecipient())) {
+            ChatServer.sendNotFriendsError(username, msg.getRecipient());
+            return;
+        }
+        BlobStore.IO.execute(() -> {
+            try {
+                String blobId = BlobStore.store(msg.getFileData());
+                senderChannel.eventLoop().execute(() -> publish(username, msg.getRecipient(), msg.getType(),
+                        msg.getFileName(), blobId, msg.getFileData().length, msg.getFileData(), null));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Streams (a range of) a stored blob back as FILE_CHUNK frames tagged with the request's transferId
+    public static void onBlobRequest(Channel channel, String username, Message req) {
+        String id = req.getTransferId();
+        if (username == null || id == null) {
+            return;
+        }
+        String blobId = req.getBlobId();
+        if (!BlobStore.isValidId(blobId)) {
+            sendAck(channel, id, 0, "ABORT");
+            return;
+        }
+        // Refused exactly like a blob that does not exist
+        mayRead(username, blobId).whenCompleteAsync((ok, e) -> {
+            if (e == null && ok) {
+                serve(channel, id, blobId, req);
+            } else {
+                sendAck(channel, id, 0, "ABORT");
+            }
+        }, BlobStore.IO);
+    }
+
+    // Runs on BlobStore.IO, the chunks are then written by the channel's event loop
+    private static void serve(Channel channel, String id, String blobId, Message req) {
+        long size = sizeOf(blobId);
+        long offset = req.getOffset() != null ? Math.max(0, req.getOffset()) : 0;
+        long length = req.getLength() != null ? Math.min(req.getLength(), size - offset) : size - offset;
+        if (size < 0 || offset > size) {
+            sendAck(channel, id, 0, "ABORT");
+            return;
+        }
+        if (length <= 0) {
+            sendAck(channel, id, offset, "DONE");
+            return;
+        }
+
+        Message header = new Message();
+        header.setType(MessageType.FILE_CHUNK);
+        header.setTransferId(id);
+        header.setBlobId(blobId);
+        header.setTotalSize(size);
+        try {
+            FileChannel file = BlobStore.open(blobId);
+            channel.writeAndFlush(new FileChunkInput(file, header, offset, length));
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendAck(channel, id, 0, "ABORT");
+        }
+    }
+
+    // Whether user sent or received a message carrying blobId, or could read it in the public room.
+    // A reference published a moment ago may still be queued in the MessageLog, so a miss is
+    // asked again once everything queued so far is written.
+    private static CompletableFuture<Boolean> mayRead(String user, String blobId) {
+        return DatabaseManager.canReadBlobAsync(user, blobId).thenCompose(ok -> ok
+                ? CompletableFuture.completedFuture(true)
+                : MessageLog.flushed().thenCompose(v -> DatabaseManager.canReadBlobAsync(user, blobId)));
+    }
+
+    public static void purgeStale() {
+        long cutoff = System.currentTimeMillis() - STALE_AFTER_MS;
+        uploads.values().removeIf(u -> {
+            if (u.lastActivity >= cutoff) return false;
+            if (!u.done) discardSpool(u);
+            return true;
+        });
+    }
+
+    private static void complete(Channel senderChannel, String id, Upload u, String blobId) {
+        // Kept until purged so late chunks of this transfer are ignored instead of restarting it
+        u.done = true;
+        Message ack = ack(id, u.totalSize, "DONE");
+        ack.setBlobId(blobId);
+        WriteBatcher.write(senderChannel, ack);
+        // The uploader shows its own copy, only the others need the reference
+        publish(u.sender, u.recipient, u.kind, u.fileName, blobId, u.totalSize, null, senderChannel);
+    }
+
+    private static void abort(Channel senderChannel, String key, String id, Upload u) {
+        if (!uploads.remove(key, u)) {
+            return; // Already aborted, e.g. by a later chunk that failed as well
+        }
+        discardSpool(u);
+        sendAck(senderChannel, id, 0, "ABORT");
+    }
+
+    // After whatever is still queued for it
+    private static void discardSpool(Upload u) {
+        BlobStore.IO.execute(() -> {
+            u.discarded = true;
+            if (u.spool != null) u.spool.abort();
+        });
+    }
+
+    private static void publish(String sender, String recipient, MessageType kind, String fileName,
+                                String blobId, long size, byte[] inline, Channel exclude) {
+        List<Channel> binary = new ArrayList<>();
+        List<Channel> legacy = new ArrayList<>();
+        boolean offline = false;
+        if (isBroadcast(recipient)) {
+            for (Channel ch : ChatServer.getAllClients()) {
+                addTarget(ch, exclude, binary, legacy);
+            }
+        } else {
+            // Every session of the recipient, and of the sender for the echo
+            SessionRegistry.Session[] to = SessionRegistry.sessionsOf(recipient);
+            offline = to.length == 0;
+            for (SessionRegistry.Session s : to) {
+                addTarget(s.channel, exclude, binary, legacy);
+            }
+            if (!sender.equals(recipient)) {
+                for (SessionRegistry.Session s : SessionRegistry.sessionsOf(sender)) {
+                    addTarget(s.channel, exclude, binary, legacy);
+                }
+            }
+        }
+
+        Message ref = new Message();
+        ref.setType(kind);
+        ref.setSender(sender);
+        ref.setRecipient(recipient);
+        ref.setFileName(fileName);
+        ref.setBlobId(blobId);
+        ref.setTotalSize(size);
+        MessageLog.append(ref);
+        if (offline && !OfflineInbox.hold(recipient, ref)) {
+            ChatServer.sendNotHeldError(sender, recipient);
+        }
+        if (!binary.isEmpty()) {
+            ChatServer.fanOut(ref, binary);
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+        if (inline != null) {
+            ref.setFileData(inline);
+            ChatServer.fanOut(ref, legacy);
+        } else if (size <= LEGACY_INLINE_LIMIT) {
+            BlobStore.IO.execute(() -> {
+                try {
+                    ref.setFileData(BlobStore.read(blobId));
+                    ChatServer.fanOut(ref, legacy);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private static void addTarget(Channel ch, Channel exclude, List<Channel> binary, List<Channel> legacy) {
+        if (ch == null || ch == exclude) return;
+        if (MessageFrameCodec.getWireFormat(ch) == WireFormat.BINARY) {
+            binary.add(ch);
+        } else {
+            legacy.add(ch);
+        }
+    }
+
+    private static boolean isBroadcast(String recipient) {
+        return recipient == null || "All".equals(recipient);
+    }
+
+    // -1 if there is no such blob
+    private static long sizeOf(String blobId) {
+        try {
+            return BlobStore.size(blobId);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static Message ack(String transferId, long offset, String status) {
+        Message ack = new Message();
+        ack.setType(MessageType.FILE_CHUNK_ACK);
+        ack.setTransferId(transferId);
+        ack.setOffset(offset);
+        ack.setContent(status);
+        return ack;
+    }
+
+    private static void sendAck(Channel channel, String transferId, long offset, String status) {
+        WriteBatcher.write(channel, ack(transferId, offset, status));
+    }
+}
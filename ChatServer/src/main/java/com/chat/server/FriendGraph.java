@@ -0,0 +1,63 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the ACCEPTED rows of the friends table, as username -> set of friends.
+ *
+ * Loaded by DatabaseManager.init() and updated by DatabaseManager after each write, so
+ * the friendship check done for every private message, file and collab frame is a
+ * hash lookup instead of a query. Edges are directed like the rows they mirror.
+ * Names are interned, a user's name is stored once however many friend sets hold it.
+ */
+public class FriendGraph {
+    private static final Map<String, Set<String>> friends = new ConcurrentHashMap<>();
+
+    public static boolean isFriend(String user, String other) {
+        if (user == null || other == null) return false;
+        Set<String> set = friends.get(user);
+        return set != null && set.contains(other);
+    }
+
+    public static List<String> getFriends(String user) {
+        Set<String> set = user != null ? friends.get(user) : null;
+        return set != null ? new ArrayList<>(set) : new ArrayList<>();
+    }
+
+    public static Set<String> friendsOf(String user) {
+        Set<String> set = user != null ? friends.get(user) : null;
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+
+    public static void add(String user, String other) {
+        friends.computeIfAbsent(user.intern(), k -> ConcurrentHashMap.newKeySet()).add(other.intern());
+    }
+
+    public static void remove(String user, String other) {
+        Set<String> set = friends.get(user);
+        if (set != null) {
+            set.remove(other);
+        }
+    }
+
+    // Drops the user and every edge pointing at them
+    public static void removeUser(String user) {
+        friends.remove(user);
+        for (Set<String> set : friends.values()) {
+            set.remove(user);
+        }
+    }
+
+    public static void clear() {
+        friends.clear();
+    }
+
+    public static int size() {
+        return friends.size();
+    }
+}
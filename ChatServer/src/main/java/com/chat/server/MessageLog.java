@@ -0,0 +1,190 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persistence of chat messages into the messages table.
+ *
+ * append() only stamps the message with its seq and timestamp and queues a copy, so
+ * delivery never waits for SQLite. A message the queue has no room for is not logged
+ * and keeps no seq. A single writer thread drains the queue and inserts
+ * whatever has piled up in one transaction, which batches naturally under load.
+ *
+ * Messages for a recipient who is offline also get an inbox row, queued right behind
+ * the message and written by the same batches; OfflineInbox hands them out at the
+ * next login. holdFor() reports whether the entry was queued, so a message that cannot
+ * be held is failed to its sender instead of being lost.
+ *
+ * flushed() never blocks: it notes how many entries have been queued so far, and the
+ * writer completes it once it has written that many.
+ *
+ * Conversations are "All" for the public room, or the two usernames of a private chat
+ * in sorted order, length-prefixed so names containing ':' cannot collide.
+ */
+public class MessageLog {
+    private static final int MAX_BATCH = 500;
+    // Beyond this the database is not keeping up, new entries are dropped rather than buffered
+    private static final int QUEUE_LIMIT = 100_000;
+
+    private static final AtomicLong lastSeq = new AtomicLong();
+    private static final BlockingQueue<Object> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong queued = new AtomicLong(); // Entries accepted into the queue
+    private static volatile long written; // How many of them the writer has stored, only it writes this
+    private static final Queue<Flush> waiting = new ConcurrentLinkedQueue<>();
+    private static final Metrics.Latency writeLatency = Metrics.dbCall("appendMessages");
+
+    /** Marks a logged message as not yet received by recipient. */
+    static final class InboxEntry {
+        final String recipient;
+        final long seq;
+
+        InboxEntry(String recipient, long seq) {
+            this.recipient = recipient;
+            this.seq = seq;
+        }
+    }
+
+    /** A flushed() caller, done once the first upTo queued entries are written. */
+    private static final class Flush {
+        final long upTo;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Flush(long upTo) {
+            this.upTo = upTo;
+        }
+    }
+
+    public static void init() {
+        lastSeq.set(DatabaseManager.getLastMessageSeq());
+        Thread writer = new Thread(MessageLog::run, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flushed().get(5, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+            }
+        }));
+    }
+
+    public static void append(Message msg) {
+        msg.setSeq(lastSeq.incrementAndGet());
+        msg.setTimestamp(System.currentTimeMillis());
+
+        // The caller may keep changing its message (e.g. attaching inline data), log a copy
+        Message entry = new Message();
+        entry.setType(msg.getType());
+        entry.setSender(msg.getSender());
+        entry.setRecipient(msg.getRecipient());
+        entry.setContent(msg.getContent());
+        entry.setFileName(msg.getFileName());
+        entry.setBlobId(msg.getBlobId());
+        entry.setTotalSize(msg.getTotalSize());
+        entry.setSeq(msg.getSeq());
+        entry.setTimestamp(msg.getTimestamp());
+        if (!offer(entry)) {
+            msg.setSeq(null);
+        }
+    }
+
+    // Queues an inbox row for a logged message (one with a seq); false if it cannot be held
+    public static boolean holdFor(String recipient, Message msg) {
+        if (msg.getSeq() == null) {
+            dropped.increment();
+            return false;
+        }
+        return offer(new InboxEntry(recipient, msg.getSeq()));
+    }
+
+    private static boolean offer(Object entry) {
+        if (queue.offer(entry)) {
+            queued.incrementAndGet();
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    // Completes once everything appended before this call has been written
+    public static CompletableFuture<Void> flushed() {
+        long upTo = queued.get();
+        if (written >= upTo) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Flush flush = new Flush(upTo);
+        waiting.add(flush);
+        if (written >= upTo) {
+            flush.done.complete(null); // The writer got there before it could see us
+        }
+        return flush.done;
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static String conversationOf(Message msg) {
+        return conversationOf(msg.getSender(), msg.getRecipient());
+    }
+
+    public static String conversationOf(String user, String peer) {
+        if (peer == null || "All".equals(peer)) {
+            return "All";
+        }
+        boolean userFirst = user.compareTo(peer) <= 0;
+        String a = userFirst ? user : peer;
+        String b = userFirst ? peer : user;
+        return a.length() + ":" + a + ":" + b;
+    }
+
+    private static void run() {
+        List<Object> drained = new ArrayList<>();
+        List<Message> batch = new ArrayList<>();
+        List<InboxEntry> inbox = new ArrayList<>();
+        while (true) {
+            try {
+                drained.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(drained, MAX_BATCH - 1);
+
+            for (Object o : drained) {
+                if (o instanceof Message) {
+                    batch.add((Message) o);
+                } else if (o instanceof InboxEntry) {
+                    inbox.add((InboxEntry) o);
+                }
+            }
+            if (!batch.isEmpty() || !inbox.isEmpty()) {
+                long start = System.nanoTime();
+                DatabaseManager.appendMessages(batch, inbox);
+                writeLatency.recordSince(start);
+            }
+            written += drained.size();
+            for (Iterator<Flush> it = waiting.iterator(); it.hasNext(); ) {
+                Flush flush = it.next();
+                if (flush.upTo <= written) {
+                    flush.done.complete(null);
+                    it.remove();
+                }
+            }
+            drained.clear();
+            batch.clear();
+            inbox.clear();
+        }
+    }
+}
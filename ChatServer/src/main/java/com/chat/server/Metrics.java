@@ -0,0 +1,277 @@
+package com.chat.server;
+
+import com.chat.common.MessageType;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.channel.Channel;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server instrumentation, served in Prometheus text format at http://metrics.host:metrics.port/metrics
+ * (127.0.0.1:9464 by default, metrics.port=0 turns the endpoint off).
+ *
+ * Latencies go into HdrHistogram Recorders, whose recordValue is wait-free and does not
+ * allocate; each scrape swaps out the interval histogram and adds it to a time slice.
+ * The exported summary's quantiles cover the slices of the last metrics.windowSeconds
+ * (60), so they follow an incident instead of averaging it into the whole uptime;
+ * _count and _sum stay totals since startup, as Prometheus expects. Counters are LongAdders. Gauges and the counters kept
+ * elsewhere (SlowConsumerHandler, RateLimitHandler, WriteBatcher, MessageLog) are read at scrape time.
+ */
+public class Metrics {
+    private static final long HIGHEST_NANOS = 60_000_000_000L;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int SLICES = 6;
+    private static final long SLICE_NANOS =
+            TimeUnit.SECONDS.toNanos(Math.max(1, ServerConfig.getInt("metrics.windowSeconds", 60))) / SLICES;
+
+    /** Latency distribution of one operation, in nanoseconds. */
+    public static final class Latency {
+        private final String labels;
+        private final Recorder recorder = new Recorder(HIGHEST_NANOS, 2);
+        private final LongAdder sumNanos = new LongAdder();
+        private Histogram interval;
+        private long count;
+        // Intervals by the slice they were scraped in; slices[i] holds slice number periods[i].
+        // Auto-resizing, so they only grow as far as the values seen
+        private final Histogram[] slices = new Histogram[SLICES];
+        private final long[] periods = new long[SLICES];
+        private final Histogram window = new Histogram(2);
+
+        private Latency(String labels) {
+            this.labels = labels;
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, Math.min(nanos, HIGHEST_NANOS));
+            recorder.recordValue(value);
+            sumNanos.add(value);
+        }
+
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        private synchronized void write(String name, StringBuilder out) {
+            interval = recorder.getIntervalHistogram(interval);
+            count += interval.getTotalCount();
+            long period = Math.floorDiv(System.nanoTime(), SLICE_NANOS);
+            int current = (int) Math.floorMod(period, (long) SLICES);
+            if (slices[current] == null) {
+                slices[current] = new Histogram(2);
+            } else if (periods[current] != period) {
+                slices[current].reset(); // Left over from a whole window ago
+            }
+            periods[current] = period;
+            slices[current].add(interval);
+
+            window.reset();
+            for (int i = 0; i < SLICES; i++) {
+                if (slices[i] != null && period - periods[i] < SLICES) {
+                    window.add(slices[i]);
+                }
+            }
+            for (double q : QUANTILES) {
+                out.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("quantile=\"").append(q).append("\"} ")
+                        .append(window.getTotalCount() == 0 ? "NaN" : seconds(window.getValueAtPercentile(q * 100)))
+                        .append('\n'); // NaN: nothing recorded within the window
+            }
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(seconds(sumNanos.sum())).append('\n');
+            out.append(name).append("_count").append(suffix).append(count).append('\n');
+        }
+    }
+
+    // One metric name with its HELP/TYPE header and every labelled series under it
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Latency> latencies = new CopyOnWriteArrayList<>();
+        LongSupplier value;
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        void write(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Latency l : latencies) {
+                l.write(name, out);
+            }
+            if (value != null) {
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+        }
+    }
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+    private static final List<Family> order = new CopyOnWriteArrayList<>();
+
+    public static final Latency DECODE = latency("chat_decode_seconds",
+            "Time to decode one inbound frame into a message", "");
+    public static final Latency FANOUT = latency("chat_fanout_seconds",
+            "Time to encode a message once and queue it on every recipient channel", "");
+    public static final Latency DB_QUEUE_WAIT = latency("chat_db_queue_wait_seconds",
+            "Time database tasks wait for a database thread", "");
+
+    public static final LongAdder BYTES_IN = counter("chat_bytes_in_total", "Bytes received, frame headers included");
+    public static final LongAdder BYTES_OUT = counter("chat_bytes_out_total", "Bytes sent, frame headers included");
+    public static final LongAdder FRAMES_IN = counter("chat_frames_in_total", "Frames received");
+    public static final LongAdder FRAMES_OUT = counter("chat_frames_out_total", "Frames sent");
+    public static final LongAdder FANOUT_RECIPIENTS = counter("chat_fanout_recipients_total",
+            "Channels written to by fan-outs");
+
+    // Created on first use, most message types are rare
+    private static final AtomicReferenceArray<Latency> dispatch =
+            new AtomicReferenceArray<>(MessageType.values().length);
+    private static final Map<String, Latency> dbCalls = new ConcurrentHashMap<>();
+
+    static {
+        gauge("chat_online_users", "Users with at least one session", SessionRegistry::userCount);
+        gauge("chat_sessions", "Logged-in connections", SessionRegistry::sessionCount);
+        gauge("chat_unwritable_channels", "Logged-in connections above the write buffer high water mark",
+                Metrics::unwritableChannels);
+        value("chat_outbound_queued_total", "Messages queued for a backed-up channel", "counter",
+                SlowConsumerHandler::getQueued);
+        value("chat_outbound_presence_dropped_total", "Presence updates dropped for backed-up channels",
+                "counter", SlowConsumerHandler::getPresenceDropped);
+        value("chat_outbound_coalesced_total", "Queued messages replaced by a newer copy", "counter",
+                SlowConsumerHandler::getCoalesced);
+        value("chat_slow_consumer_disconnects_total", "Clients disconnected for not reading", "counter",
+                SlowConsumerHandler::getDisconnected);
+        value("chat_ratelimit_rejected_total", "Chat messages rejected for going over the rate limit", "counter",
+                RateLimitHandler::getRejected);
+        value("chat_ratelimit_dropped_total", "Server-only message types dropped for going over the rate limit", "counter",
+                RateLimitHandler::getDropped);
+        value("chat_ratelimit_held_total", "Collab resync requests held back until the rate limit allowed them", "counter",
+                RateLimitHandler::getHeld);
+        value("chat_ratelimit_coalesced_total", "Held collab resync requests replaced by a newer one", "counter",
+                RateLimitHandler::getCoalesced);
+        value("chat_ratelimit_paused_total", "Times a connection stopped reading to pay off its file budget",
+                "counter", RateLimitHandler::getPaused);
+        gauge("chat_collab_rooms", "Open collaborative editing rooms", CollabHub::roomCount);
+        value("chat_collab_ops_total", "Edits applied to collab documents", "counter", CollabHub::getOps);
+        value("chat_collab_resyncs_total", "Collab snapshots sent to participants that fell out of step", "counter",
+                CollabHub::getResyncs);
+        value("chat_batched_writes_total", "Writes made through WriteBatcher", "counter", WriteBatcher::getWrites);
+        value("chat_batched_flushes_total", "Flushes issued by WriteBatcher", "counter", WriteBatcher::getFlushes);
+        value("chat_message_log_dropped_total", "Log entries dropped because the writer fell behind", "counter",
+                MessageLog::getDropped);
+    }
+
+    public static Latency dispatch(MessageType type) {
+        Latency l = dispatch.get(type.ordinal());
+        return l != null ? l : createDispatch(type);
+    }
+
+    private static synchronized Latency createDispatch(MessageType type) {
+        Latency l = dispatch.get(type.ordinal());
+        if (l == null) {
+            l = latency("chat_dispatch_seconds",
+                    "Time from a message reaching the handler until it is fully handled",
+                    "type=\"" + type.name() + "\"");
+            dispatch.set(type.ordinal(), l);
+        }
+        return l;
+    }
+
+    public static Latency dbCall(String op) {
+        Latency l = dbCalls.get(op);
+        return l != null ? l : dbCalls.computeIfAbsent(op, k -> latency("chat_db_call_seconds",
+                "Time a database call runs on its database thread", "op=\"" + k + "\""));
+    }
+
+    private static Family family(String name, String help, String type) {
+        return families.computeIfAbsent(name, k -> {
+            Family f = new Family(name, help, type);
+            order.add(f);
+            return f;
+        });
+    }
+
+    private static Latency latency(String name, String help, String labels) {
+        Latency l = new Latency(labels);
+        family(name, help, "summary").latencies.add(l);
+        return l;
+    }
+
+    private static LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        value(name, help, "counter", adder::sum);
+        return adder;
+    }
+
+    private static void gauge(String name, String help, LongSupplier value) {
+        value(name, help, "gauge", value);
+    }
+
+    private static void value(String name, String help, String type, LongSupplier value) {
+        family(name, help, type).value = value;
+    }
+
+    private static long unwritableChannels() {
+        long n = 0;
+        for (Channel ch : SessionRegistry.channels()) {
+            if (!ch.isWritable()) n++;
+        }
+        return n;
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family f : order) {
+            f.write(out);
+        }
+        return out.toString();
+    }
+
+    public static void startHttp() {
+        int port = ServerConfig.getInt("metrics.port", 9464);
+        if (port <= 0) {
+            return;
+        }
+        String host = ServerConfig.getString("metrics.host", "127.0.0.1");
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            System.out.println("Metrics on http://" + host + ":" + port + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Cannot start metrics endpoint on " + host + ":" + port + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.chat.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Counts frames and bytes in both directions. Sits right behind the length field codecs,
+ * where every inbound ByteBuf is one frame and every outbound ByteBuf is one frame
+ * still waiting for its 4 byte length prefix. One instance serves every channel.
+ */
+@ChannelHandler.Sharable
+public class MetricsHandler extends ChannelDuplexHandler {
+    public static final MetricsHandler INSTANCE = new MetricsHandler();
+
+    private static final int LENGTH_FIELD = 4;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            Metrics.FRAMES_IN.increment();
+            Metrics.BYTES_IN.add(((ByteBuf) msg).readableBytes() + LENGTH_FIELD);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            Metrics.FRAMES_OUT.increment();
+            Metrics.BYTES_OUT.add(((ByteBuf) msg).readableBytes() + LENGTH_FIELD);
+        }
+        ctx.write(msg, promise);
+    }
+}
@@ -1,286 +1,438 @@
 package com.chat.server;
 
 import com.chat.common.Message;
+import com.chat.common.MessageCodec;
+import com.chat.common.MessageFrameCodec;
 import com.chat.common.MessageType;
+import com.chat.common.WireFormat;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
 
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int HISTORY_PAGE_MAX = 200;
+    private static final int ADMIN_PAGE_SIZE = 100;
+    private static final int ADMIN_PAGE_MAX = 500;
+    // Messages queued behind pending before the connection stops reading, and when it starts again
+    private static final int BACKLOG_HIGH = 64;
+    private static final int BACKLOG_LOW = 16;
+
     private String username;
+    // The admin's last ADMIN_GET_USERS, its page is sent again after each admin action
+    private Message adminQuery;
+
+    // Completes when the previous message has been fully handled. Database work runs on
+    // DatabaseManager's executor, so later messages from this connection queue behind it
+    // to keep replies in the order the requests came in.
+    // A slow database would let that queue grow without end, so past BACKLOG_HIGH
+    // waiting messages the connection stops reading until it is down to BACKLOG_LOW.
+    private CompletableFuture<?> pending = DONE;
+    private int waiting; // Messages queued behind pending, only touched on the event loop
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
+        if (pending.isDone()) {
+            pending = handle(ctx, msg);
+            return;
+        }
+        if (++waiting >= BACKLOG_HIGH) {
+            ReadPause.pause(ctx.channel(), ReadPause.BACKLOG);
+        }
+        pending = pending.thenComposeAsync(v -> {
+            if (--waiting <= BACKLOG_LOW) {
+                ReadPause.resume(ctx.channel(), ReadPause.BACKLOG);
+            }
+            return handle(ctx, msg);
+        }, ctx.executor());
+    }
+
+    private CompletableFuture<?> handle(ChannelHandlerContext ctx, Message msg) {
+        long start = System.nanoTime();
+        Metrics.Latency latency = msg.getType() != null ? Metrics.dispatch(msg.getType()) : null;
+        try {
+            CompletableFuture<?> done = dispatch(ctx, msg);
+            if (done.isDone()) {
+                if (latency != null) latency.recordSince(start);
+                return done.isCompletedExceptionally() ? logFailure(done) : done;
+            }
+            // Waited on the database, time it until the reply is written
+            return logFailure(done.whenComplete((v, e) -> {
+                if (latency != null) latency.recordSince(start);
+            }));
+        } catch (Exception e) {
+            exceptionCaught(ctx, e);
+            return DONE;
+        }
+    }
+
+    private static CompletableFuture<?> logFailure(CompletableFuture<?> f) {
+        return f.exceptionally(cause -> {
+            cause.printStackTrace();
+            return null;
+        });
+    }
+
+    // Runs on the event loop. Anything touching SQLite goes through the *Async API and
+    // continues on ctx.executor(), the returned future completes once that is done.
+    private CompletableFuture<?> dispatch(ChannelHandlerContext ctx, Message msg) {
         switch (msg.getType()) {
             case REGISTER:
-                boolean regSuccess = DatabaseManager.registerUser(msg.getSender(), msg.getPassword());
-                Message regResponse = new Message();
-                regResponse.setType(regSuccess ? MessageType.REGISTER_SUCCESS : MessageType.REGISTER_FAIL);
-                regResponse.setContent(regSuccess ? "Registration successful" : "Username already exists");
-                ctx.writeAndFlush(regResponse);
-                break;
+                return DatabaseManager.registerUserAsync(msg.getSender(), msg.getPassword())
+                        .thenAcceptAsync(regSuccess -> {
+                            Message regResponse = new Message();
+                            regResponse.setType(regSuccess ? MessageType.REGISTER_SUCCESS : MessageType.REGISTER_FAIL);
+                            regResponse.setContent(regSuccess ? "Registration successful" : "Username already exists");
+                            WriteBatcher.write(ctx.channel(), regResponse);
+                        }, ctx.executor());
 
             case LOGIN:
-                // Check if banned first
-                if (DatabaseManager.isBanned(msg.getSender())) {
-                    Message banMsg = new Message();
-                    banMsg.setType(MessageType.LOGIN_FAIL);
-                    banMsg.setContent("Your account has been banned.");
-                    ctx.writeAndFlush(banMsg);
-                    break;
+                // Newer clients advertise binary support, everything we send from now on uses it
+                if (MessageCodec.hasCapability(msg.getExtraInfo(), MessageCodec.WIRE_BINARY)) {
+                    MessageFrameCodec.setWireFormat(ctx.channel(), WireFormat.BINARY);
                 }
-
-                boolean loginSuccess = DatabaseManager.checkLogin(msg.getSender(), msg.getPassword());
-                Message loginResponse = new Message();
-                if (loginSuccess) {
-                    this.username = msg.getSender();
-                    ChatServer.addClient(username, ctx.channel());
-                    
-                    loginResponse.setType(MessageType.LOGIN_SUCCESS);
-                    loginResponse.setSender(username); // IMPORTANT: Send back the username
-                    loginResponse.setContent("Login successful");
-                    // Send avatar color as extra info
-                    loginResponse.setExtraInfo(DatabaseManager.getAvatarColor(username));
-                    ctx.writeAndFlush(loginResponse);
-
-                    // Send Friend List
-                    List<String> friends = DatabaseManager.getFriends(username);
-                    Message friendListMsg = new Message();
-                    friendListMsg.setType(MessageType.FRIEND_LIST);
-                    friendListMsg.setOnlineUsers(friends); // Reusing onlineUsers field for friend list
-                    ctx.writeAndFlush(friendListMsg);
-                    
-                    System.out.println("User logged in: " + username);
-                } else {
-                    loginResponse.setType(MessageType.LOGIN_FAIL);
-                    loginResponse.setContent("Invalid username or password");
-                    ctx.writeAndFlush(loginResponse);
-                }
-                break;
+                return login(ctx, msg.getSender(), msg.getPassword(),
+                        MessageCodec.hasCapability(msg.getExtraInfo(), MessageCodec.LOGIN_COMBINED));
 
             case ADMIN_GET_USERS:
                 if ("mikulight".equals(this.username)) {
-                    List<String> allUsers = DatabaseManager.getAllUsersStatus();
-                    // Append online status
-                    List<String> finalData = new ArrayList<>();
-                    for (String u : allUsers) {
-                        // format: username:isBanned
-                        String[] parts = u.split(":");
-                        String name = parts[0];
-                        String banned = parts[1];
-                        String online = ChatServer.isUserOnline(name) ? "1" : "0";
-                        finalData.add(name + ":" + online + ":" + banned);
-                    }
-                    
-                    Message listMsg = new Message();
-                    listMsg.setType(MessageType.ADMIN_USER_LIST);
-                    listMsg.setOnlineUsers(finalData); // Reuse this list field
-                    ctx.writeAndFlush(listMsg);
+                    adminQuery = msg;
+                    sendAdminUserList(ctx, msg);
                 }
                 break;
-                
+
             case ADMIN_BAN_USER:
                 if ("mikulight".equals(this.username)) {
                     String target = msg.getRecipient();
-                    DatabaseManager.setBanned(target, true);
-                    ChatServer.kickClient(target); // Kick if online
-                    
-                    // Refresh list
-                    List<String> allUsers = DatabaseManager.getAllUsersStatus();
-                    List<String> finalData = new ArrayList<>();
-                    for (String u : allUsers) {
-                        String[] parts = u.split(":");
-                        String name = parts[0];
-                        String banned = parts[1];
-                        String online = ChatServer.isUserOnline(name) ? "1" : "0";
-                        finalData.add(name + ":" + online + ":" + banned);
-                    }
-                    Message listMsg = new Message();
-                    listMsg.setType(MessageType.ADMIN_USER_LIST);
-                    listMsg.setOnlineUsers(finalData);
-                    ctx.writeAndFlush(listMsg);
+                    return DatabaseManager.setBannedAsync(target, true)
+                            .thenRunAsync(() -> {
+                                ChatServer.kickClient(target); // Kick if online
+                                // Refresh list
+                                sendAdminUserList(ctx, adminQuery);
+                            }, ctx.executor());
                 }
                 break;
 
             case ADMIN_UNBAN_USER:
                 if ("mikulight".equals(this.username)) {
-                    String target = msg.getRecipient();
-                    DatabaseManager.setBanned(target, false);
-                    
-                    // Refresh list
-                    List<String> allUsers = DatabaseManager.getAllUsersStatus();
-                    List<String> finalData = new ArrayList<>();
-                    for (String u : allUsers) {
-                        String[] parts = u.split(":");
-                        String name = parts[0];
-                        String banned = parts[1];
-                        String online = ChatServer.isUserOnline(name) ? "1" : "0";
-                        finalData.add(name + ":" + online + ":" + banned);
-                    }
-                    Message listMsg = new Message();
-                    listMsg.setType(MessageType.ADMIN_USER_LIST);
-                    listMsg.setOnlineUsers(finalData);
-                    ctx.writeAndFlush(listMsg);
+                    return DatabaseManager.setBannedAsync(msg.getRecipient(), false)
+                            .thenRunAsync(() -> sendAdminUserList(ctx, adminQuery), ctx.executor()); // Refresh list
                 }
                 break;
-                
+
             case ADMIN_DELETE_USER:
                 if ("mikulight".equals(this.username)) {
                     String target = msg.getRecipient();
-                    
+
                     // 1. Get friends before deletion to notify them later
-                    List<String> friendsToNotify = DatabaseManager.getFriends(target);
-                    
                     // 2. Delete user and friend relationships
-                    DatabaseManager.deleteUser(target);
-                    
-                    // 3. Kick the user if online
-                    ChatServer.kickClient(target); 
-                    
-                    // 4. Notify all friends to update their friend list
-                    for (String friendName : friendsToNotify) {
-                        io.netty.channel.Channel friendChannel = ChatServer.getClient(friendName);
-                        if (friendChannel != null && friendChannel.isActive()) {
-                            // Fetch new friend list (which excludes the deleted user)
-                            List<String> newFriendList = DatabaseManager.getFriends(friendName);
-                            Message updateMsg = new Message();
-                            updateMsg.setType(MessageType.FRIEND_LIST);
-                            updateMsg.setOnlineUsers(newFriendList);
-                            friendChannel.writeAndFlush(updateMsg);
+                    return DatabaseManager.supplyAsync("deleteUser", () -> {
+                        List<String> friendsToNotify = DatabaseManager.getFriends(target);
+                        DatabaseManager.deleteUser(target);
+                        return friendsToNotify;
+                    }).thenAcceptAsync(friendsToNotify -> {
+                        // 3. Kick the user if online
+                        ChatServer.kickClient(target);
+
+                        // 4. Notify all friends to update their friend list
+                        for (String friendName : friendsToNotify) {
+                            sendFriendList(friendName);
                         }
-                    }
-                    
-                    // Refresh list for admin
-                    List<String> allUsers = DatabaseManager.getAllUsersStatus();
-                    List<String> finalData = new ArrayList<>();
-                    for (String u : allUsers) {
-                        String[] parts = u.split(":");
-                        String name = parts[0];
-                        String banned = parts[1];
-                        String online = ChatServer.isUserOnline(name) ? "1" : "0";
-                        finalData.add(name + ":" + online + ":" + banned);
-                    }
-                    Message listMsg = new Message();
-                    listMsg.setType(MessageType.ADMIN_USER_LIST);
-                    listMsg.setOnlineUsers(finalData);
-                    ctx.writeAndFlush(listMsg);
+
+                        // Refresh list for admin
+                        sendAdminUserList(ctx, adminQuery);
+                    }, ctx.executor());
                 }
                 break;
 
             case CHAT_ALL:
+                if (this.username == null) {
+                    break;
+                }
+                msg.setSender(this.username); // Whatever the client claimed, it speaks for its own login
+                MessageLog.append(msg);
                 ChatServer.broadcastMessage(msg);
                 break;
 
             case CHAT_PRIVATE:
+                if (this.username == null) {
+                    break;
+                }
+                msg.setSender(this.username);
+                if (DatabaseManager.isFriend(msg.getSender(), msg.getRecipient())) {
+                    MessageLog.append(msg);
+                }
                 ChatServer.sendPrivateMessage(msg);
                 break;
 
+            case PRESENCE_SYNC:
+                // The client missed a delta
+                if (this.username != null) {
+                    Presence.sendSnapshot(ctx.channel());
+                }
+                break;
+
+            case HISTORY_REQUEST:
+                if (this.username != null) {
+                    return sendHistoryPage(ctx, msg);
+                }
+                break;
+
             case FILE:
             case IMAGE:
-                if (msg.getRecipient() == null || "All".equals(msg.getRecipient())) {
-                    ChatServer.broadcastMessage(msg);
-                } else {
-                    ChatServer.sendPrivateMessage(msg);
-                }
+                // Stored once in the blob store, recipients get a reference
+                FileTransferManager.onWholeFile(ctx.channel(), this.username, msg);
+                break;
+
+            case FILE_CHUNK:
+                FileTransferManager.onChunk(ctx.channel(), this.username, msg);
+                break;
+
+            case BLOB_REQUEST:
+                FileTransferManager.onBlobRequest(ctx.channel(), this.username, msg);
                 break;
 
             case ADD_FRIEND_REQUEST:
                 String targetUser = msg.getRecipient();
-                if (DatabaseManager.addFriendRequest(this.username, targetUser)) {
-                    // Forward request if user is online
-                    Message reqMsg = new Message();
-                    reqMsg.setType(MessageType.ADD_FRIEND_REQUEST);
-                    reqMsg.setSender(this.username);
-                    reqMsg.setRecipient(targetUser);
-                    reqMsg.setContent("Friend request from " + this.username);
-                    
-                    // Send ONLY to target, do not echo back to sender
-                    io.netty.channel.Channel targetChannel = ChatServer.getClient(targetUser);
-                    if (targetChannel != null) {
-                        targetChannel.writeAndFlush(reqMsg);
-                    }
-                }
-                break;
+                String fromUser = this.username;
+                return DatabaseManager.addFriendRequestAsync(fromUser, targetUser)
+                        .thenAcceptAsync(added -> {
+                            if (!added) {
+                                return;
+                            }
+                            // Forward request if user is online
+                            Message reqMsg = new Message();
+                            reqMsg.setType(MessageType.ADD_FRIEND_REQUEST);
+                            reqMsg.setSender(fromUser);
+                            reqMsg.setRecipient(targetUser);
+                            reqMsg.setContent("Friend request from " + fromUser);
+
+                            // Send ONLY to target, do not echo back to sender
+                            ChatServer.sendToUser(targetUser, reqMsg);
+                        }, ctx.executor());
 
             case DELETE_FRIEND:
                 String friendToDelete = msg.getRecipient(); // The friend to delete
-                DatabaseManager.deleteFriend(this.username, friendToDelete);
-                
-                // 1. Update sender's friend list
-                Message updateSender = new Message();
-                updateSender.setType(MessageType.FRIEND_LIST);
-                updateSender.setOnlineUsers(DatabaseManager.getFriends(this.username));
-                ctx.writeAndFlush(updateSender);
-                
-                // 2. Update ex-friend's friend list (if online)
-                io.netty.channel.Channel exFriendChannel = ChatServer.getClient(friendToDelete);
-                if (exFriendChannel != null) {
-                    Message updateExFriend = new Message();
-                    updateExFriend.setType(MessageType.FRIEND_LIST);
-                    updateExFriend.setOnlineUsers(DatabaseManager.getFriends(friendToDelete));
-                    exFriendChannel.writeAndFlush(updateExFriend);
-                }
-                break;
+                String self = this.username;
+                return DatabaseManager.deleteFriendAsync(self, friendToDelete)
+                        .thenRunAsync(() -> {
+                            // 1. Update sender's friend list
+                            sendFriendList(self);
+                            // 2. Update ex-friend's friend list (if online)
+                            sendFriendList(friendToDelete);
+                        }, ctx.executor());
 
             case ADD_FRIEND_RESPONSE:
                 String requester = msg.getRecipient(); // The one who sent the request
                 boolean accepted = "ACCEPTED".equals(msg.getContent());
                 if (accepted) {
-                    DatabaseManager.acceptFriend(requester, this.username);
-                    // Notify both to update friend list
-                    // 1. Notify requester
-                    Message notify1 = new Message();
-                    notify1.setType(MessageType.ADD_FRIEND_RESPONSE);
-                    notify1.setSender(this.username);
-                    notify1.setRecipient(requester);
-                    notify1.setContent("ACCEPTED");
-                    
-                    // Send ONLY to requester
-                    io.netty.channel.Channel reqChannel = ChatServer.getClient(requester);
-                    if (reqChannel != null) {
-                        reqChannel.writeAndFlush(notify1);
-                    }
-                    
-                    // 2. Notify self (accepter) - Client should handle this update locally or we send a new list
-                    Message notify2 = new Message();
-                    notify2.setType(MessageType.FRIEND_LIST);
-                    notify2.setOnlineUsers(DatabaseManager.getFriends(this.username));
-                    ctx.writeAndFlush(notify2);
+                    String accepter = this.username;
+                    return DatabaseManager.acceptFriendAsync(requester, accepter)
+                            .thenRunAsync(() -> {
+                                // Notify both to update friend list
+                                // 1. Notify requester
+                                Message notify1 = new Message();
+                                notify1.setType(MessageType.ADD_FRIEND_RESPONSE);
+                                notify1.setSender(accepter);
+                                notify1.setRecipient(requester);
+                                notify1.setContent("ACCEPTED");
+
+                                // Send ONLY to requester
+                                ChatServer.sendToUser(requester, notify1);
+
+                                // 2. Notify self (accepter) - Client should handle this update locally or we send a new list
+                                sendFriendList(accepter);
+                            }, ctx.executor());
                 }
                 break;
-                
+
             case AVATAR_UPDATE:
                 if (msg.getFileData() != null) {
-                    DatabaseManager.updateAvatar(this.username, msg.getFileData());
                     // Broadcast to update others' view? Or just let them fetch on demand?
                     // For now, maybe just acknowledge or do nothing.
+                    return DatabaseManager.updateAvatarAsync(this.username, msg.getFileData());
                 }
                 break;
 
             case COLLAB_REQUEST:
+                if (this.username != null) {
+                    CollabHub.invite(ctx.channel(), this.username, msg);
+                }
+                break;
+
             case COLLAB_ACCEPT:
+                if (this.username != null) {
+                    CollabHub.accept(ctx.channel(), this.username, msg);
+                }
+                break;
+
             case COLLAB_DENY:
+                if (this.username != null) {
+                    CollabHub.deny(this.username, msg);
+                }
+                break;
+
             case COLLAB_SYNC:
-            case COLLAB_UPDATE:
-            case COLLAB_END:
-            case COLLAB_LOCK:
-            case COLLAB_UNLOCK:
-                // Forward to recipient if friends
-                if (msg.getRecipient() != null) {
-                    ChatServer.sendPrivateMessage(msg);
+                CollabHub.resync(ctx.channel(), msg);
+                break;
+
+            case COLLAB_OP:
+                if (this.username != null) {
+                    CollabHub.op(ctx.channel(), this.username, msg);
                 }
                 break;
 
+            case COLLAB_END:
+                CollabHub.leave(ctx.channel(), this.username, msg);
+                break;
+
             case LOGOUT:
-                ChatServer.removeClient(username);
+                ChatServer.removeClient(username, ctx.channel());
                 ctx.close();
                 break;
             default:
                 break;
         }
+        return DONE;
+    }
+
+    // Known users are answered from UserProfiles right here on the event loop; only a
+    // user missing from it costs a trip to the database, for one query.
+    private CompletableFuture<?> login(ChannelHandlerContext ctx, String user, String password, boolean combined) {
+        UserProfiles.Profile cached = UserProfiles.get(user);
+        if (cached != null) {
+            finishLogin(ctx, user, password, cached, combined);
+            return DONE;
+        }
+        return DatabaseManager.supplyAsync("login", () -> DatabaseManager.getProfile(user))
+                .thenAcceptAsync(profile -> finishLogin(ctx, user, password, profile, combined), ctx.executor());
+    }
+
+    private void finishLogin(ChannelHandlerContext ctx, String user, String password,
+                             UserProfiles.Profile profile, boolean combined) {
+        Message loginResponse = new Message();
+        if (profile != null && profile.banned) { // Checked first, so a banned user learns why
+            loginResponse.setType(MessageType.LOGIN_FAIL);
+            loginResponse.setContent("Your account has been banned.");
+            WriteBatcher.write(ctx.channel(), loginResponse);
+            return;
+        }
+        if (profile == null || !profile.password.equals(password)) {
+            loginResponse.setType(MessageType.LOGIN_FAIL);
+            loginResponse.setContent("Invalid username or password");
+            WriteBatcher.write(ctx.channel(), loginResponse);
+            return;
+        }
+        if (!ctx.channel().isActive()) {
+            return; // The connection went away while we were in the database
+        }
+        this.username = user;
+        ChatServer.addClient(username, ctx.channel());
+        System.out.println("User logged in: " + username);
+
+        loginResponse.setType(MessageType.LOGIN_SUCCESS);
+        loginResponse.setSender(user); // IMPORTANT: Send back the username
+        loginResponse.setContent("Login successful");
+        // Send avatar color as extra info
+        loginResponse.setExtraInfo(profile.avatarColor != null ? profile.avatarColor : "#CCCCCC");
+        List<String> friends = DatabaseManager.getFriends(user);
+        if (combined) {
+            loginResponse.setOnlineUsers(friends); // The friend list rides along
+            WriteBatcher.write(ctx.channel(), loginResponse);
+        } else {
+            WriteBatcher.write(ctx.channel(), loginResponse);
+            Message friendListMsg = new Message();
+            friendListMsg.setType(MessageType.FRIEND_LIST);
+            friendListMsg.setOnlineUsers(friends); // Reusing onlineUsers field for friend list
+            WriteBatcher.write(ctx.channel(), friendListMsg);
+        }
+        Presence.sendSnapshot(ctx.channel());
+        // Whatever arrived while the user was away, right behind the friend list
+        OfflineInbox.drain(ctx.channel(), username);
+    }
+
+    // Friend lists come from FriendGraph, this never waits for the database
+    private static void sendFriendList(String user) {
+        if (ChatServer.isUserOnline(user)) {
+            Message updateMsg = new Message();
+            updateMsg.setType(MessageType.FRIEND_LIST);
+            updateMsg.setOnlineUsers(DatabaseManager.getFriends(user));
+            ChatServer.sendToUser(user, updateMsg);
+        }
+    }
+
+    // One page of a conversation the user takes part in, older than the cursor in req.seq
+    private CompletableFuture<?> sendHistoryPage(ChannelHandlerContext ctx, Message req) {
+        String peer = req.getRecipient() != null ? req.getRecipient() : "All";
+        String conversation = MessageLog.conversationOf(this.username, peer);
+        int limit = HISTORY_PAGE_SIZE;
+        if (req.getLength() != null) {
+            limit = (int) Math.max(1, Math.min(HISTORY_PAGE_MAX, req.getLength()));
+        }
+        int pageSize = limit;
+
+        // Wait for the write-behind queue so the page includes what was just sent
+        return MessageLog.flushed()
+                .thenCompose(v -> DatabaseManager.getHistoryAsync(conversation, req.getSeq(), pageSize + 1))
+                .thenAcceptAsync(rows -> {
+                    boolean more = rows.size() > pageSize;
+                    List<Message> page = new ArrayList<>(rows.subList(0, Math.min(pageSize, rows.size())));
+                    Collections.reverse(page); // Oldest first
+
+                    Message reply = new Message();
+                    reply.setType(MessageType.HISTORY_PAGE);
+                    reply.setRecipient(peer);
+                    reply.setHistory(page);
+                    if (more) {
+                        reply.setSeq(page.get(0).getSeq()); // Cursor for the next older page, none when exhausted
+                    }
+                    WriteBatcher.write(ctx.channel(), reply);
+                }, ctx.executor());
+    }
+
+    // One page of ADMIN_GET_USERS results as "name:online:banned" rows, from UserDirectory.
+    // req carries the name prefix in content, "online" or "banned" in extraInfo, the last
+    // name of the previous page in recipient and the page size in length, all optional.
+    // The reply echoes the filter and carries the cursor for the next page, if any, in recipient.
+    private static void sendAdminUserList(ChannelHandlerContext ctx, Message req) {
+        String prefix = req != null ? req.getContent() : null;
+        String filter = req != null ? req.getExtraInfo() : null;
+        int limit = ADMIN_PAGE_SIZE;
+        if (req != null && req.getLength() != null) {
+            limit = (int) Math.max(1, Math.min(ADMIN_PAGE_MAX, req.getLength()));
+        }
+        List<String> names = UserDirectory.page(UserDirectory.Filter.parse(filter), prefix,
+                req != null ? req.getRecipient() : null, limit + 1);
+        boolean more = names.size() > limit;
+        List<String> rows = new ArrayList<>(Math.min(limit, names.size()));
+        for (String name : more ? names.subList(0, limit) : names) {
+            rows.add(name + ":" + (ChatServer.isUserOnline(name) ? "1" : "0")
+                    + ":" + (UserDirectory.isBanned(name) ? "1" : "0"));
+        }
+
+        Message listMsg = new Message();
+        listMsg.setType(MessageType.ADMIN_USER_LIST);
+        listMsg.setOnlineUsers(rows); // Reuse this list field
+        listMsg.setContent(prefix);
+        listMsg.setExtraInfo(filter);
+        if (more) {
+            listMsg.setRecipient(names.get(limit - 1));
+        }
+        WriteBatcher.write(ctx.channel(), listMsg);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == SlowConsumerHandler.PRESENCE_STALE && username != null) {
+            Presence.sendSnapshot(ctx.channel());
+        }
+        super.userEventTriggered(ctx, evt);
     }
 
     @Override
@@ -292,7 +444,8 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         if (username != null) {
-            ChatServer.removeClient(username);
+            CollabHub.leaveAll(ctx.channel(), username);
+            ChatServer.removeClient(username, ctx.channel());
             System.out.println("User disconnected: " + username);
         }
         super.channelInactive(ctx);
@@ -0,0 +1,69 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.util.List;
+
+/**
+ * Delivers the private messages and files that arrived while a user was offline.
+ *
+ * Entries are stored by MessageLog. On login they are read back in pages and written
+ * without a flush per message, one flush per burst. Writing stops whenever the channel
+ * turns unwritable and resumes once the last write has gone out, so a large backlog
+ * never piles up in the outbound buffer. Entries are deleted only after their page
+ * has been written; whatever is left over waits for the next login.
+ */
+public class OfflineInbox {
+    private static final int PAGE_SIZE = 200;
+
+    // False if msg could not be stored, the caller tells the sender
+    public static boolean hold(String recipient, Message msg) {
+        return MessageLog.holdFor(recipient, msg);
+    }
+
+    public static void drain(Channel channel, String username) {
+        drainAfter(channel, username, 0);
+    }
+
+    private static void drainAfter(Channel channel, String username, long afterSeq) {
+        // Entries still in the write-behind queue have to reach the table first
+        MessageLog.flushed()
+                .thenCompose(v -> DatabaseManager.getInboxAsync(username, afterSeq, PAGE_SIZE))
+                .thenAcceptAsync(page -> send(channel, username, page, 0), channel.eventLoop())
+                .exceptionally(cause -> {
+                    cause.printStackTrace();
+                    return null;
+                });
+    }
+
+    // Runs on the channel's event loop
+    private static void send(Channel channel, String username, List<Message> page, int from) {
+        if (page.isEmpty() || !channel.isActive()) {
+            return;
+        }
+        int next = from;
+        ChannelFuture last;
+        do {
+            last = channel.write(page.get(next++));
+        } while (next < page.size() && channel.isWritable());
+        channel.flush();
+
+        int resumeAt = next;
+        last.addListener(f -> {
+            if (!f.isSuccess()) {
+                return; // Connection gone, the entries stay in the inbox
+            }
+            if (resumeAt < page.size()) {
+                send(channel, username, page, resumeAt);
+                return;
+            }
+            long upTo = page.get(page.size() - 1).getSeq();
+            DatabaseManager.deleteInboxAsync(username, upTo);
+            if (page.size() == PAGE_SIZE) {
+                drainAfter(channel, username, upTo);
+            }
+        });
+    }
+}
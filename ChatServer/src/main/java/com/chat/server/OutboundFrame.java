@@ -0,0 +1,20 @@
+package com.chat.server;
+
+import com.chat.common.MessageType;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * An already encoded message on its way out, tagged with what it is so
+ * {@link SlowConsumerHandler} can apply its policy without decoding it.
+ */
+final class OutboundFrame {
+    final ByteBuf frame;
+    final MessageType type;
+    final String sender;
+
+    OutboundFrame(ByteBuf frame, MessageType type, String sender) {
+        this.frame = frame;
+        this.type = type;
+        this.sender = sender;
+    }
+}
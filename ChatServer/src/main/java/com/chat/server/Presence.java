@@ -0,0 +1,119 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import com.chat.common.MessageFrameCodec;
+import com.chat.common.MessageType;
+import com.chat.common.WireFormat;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versioned online-user list, published as deltas instead of full lists.
+ *
+ * Logins and logouts only mark the user dirty. Every presence.batchMs the dirty users
+ * are compared with the last published state, and the net change goes out as one
+ * PRESENCE_JOIN and/or one PRESENCE_LEAVE, each carrying the new version in seq.
+ * A client takes a full snapshot (UPDATE_USERS with the version in seq) at login and
+ * asks for another with PRESENCE_SYNC when it sees a version gap. Legacy JSON clients
+ * know nothing of deltas and get one UPDATE_USERS per batch instead.
+ */
+public class Presence {
+    private static final long BATCH_MS = ServerConfig.getLong("presence.batchMs", 200);
+
+    private static final Object lock = new Object();
+    private static final Set<String> published = new LinkedHashSet<>(); // As of version
+    private static final Set<String> dirty = new LinkedHashSet<>();
+    private static long version;
+
+    public static void start(EventLoopGroup group) {
+        group.scheduleAtFixedRate(Presence::flush, BATCH_MS, BATCH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static void changed(String username) {
+        synchronized (lock) {
+            dirty.add(username);
+        }
+    }
+
+    // Full list at the current version, written under the lock so no later delta can overtake it
+    public static void sendSnapshot(Channel channel) {
+        synchronized (lock) {
+            Message snapshot = new Message();
+            snapshot.setType(MessageType.UPDATE_USERS);
+            snapshot.setOnlineUsers(new ArrayList<>(published));
+            snapshot.setSeq(version);
+            WriteBatcher.write(channel, snapshot);
+        }
+    }
+
+    private static void flush() {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        long joinVersion = 0;
+        long leaveVersion = 0;
+        List<String> snapshot;
+        long snapshotVersion;
+        synchronized (lock) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            for (String user : dirty) {
+                boolean online = ChatServer.isUserOnline(user);
+                if (online && !published.contains(user)) {
+                    joined.add(user);
+                } else if (!online && published.contains(user)) {
+                    left.add(user);
+                }
+            }
+            dirty.clear();
+            if (joined.isEmpty() && left.isEmpty()) {
+                return; // Reconnected within the window
+            }
+            if (!joined.isEmpty()) {
+                published.addAll(joined);
+                joinVersion = ++version;
+            }
+            if (!left.isEmpty()) {
+                published.removeAll(left);
+                leaveVersion = ++version;
+            }
+            snapshot = new ArrayList<>(published);
+            snapshotVersion = version;
+        }
+
+        List<Channel> deltaClients = new ArrayList<>();
+        List<Channel> legacyClients = new ArrayList<>();
+        for (Channel ch : ChatServer.getAllClients()) {
+            if (MessageFrameCodec.getWireFormat(ch) == WireFormat.BINARY) {
+                deltaClients.add(ch);
+            } else {
+                legacyClients.add(ch);
+            }
+        }
+        if (!deltaClients.isEmpty()) {
+            if (!joined.isEmpty()) {
+                ChatServer.fanOut(delta(MessageType.PRESENCE_JOIN, joined, joinVersion), deltaClients);
+            }
+            if (!left.isEmpty()) {
+                ChatServer.fanOut(delta(MessageType.PRESENCE_LEAVE, left, leaveVersion), deltaClients);
+            }
+        }
+        if (!legacyClients.isEmpty()) {
+            ChatServer.fanOut(delta(MessageType.UPDATE_USERS, snapshot, snapshotVersion), legacyClients);
+        }
+    }
+
+    private static Message delta(MessageType type, List<String> users, long version) {
+        Message msg = new Message();
+        msg.setType(type);
+        msg.setOnlineUsers(users);
+        msg.setSeq(version);
+        return msg;
+    }
+}
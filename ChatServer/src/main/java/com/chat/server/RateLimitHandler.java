@@ -0,0 +1,344 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket flood protection in front of NettyServerHandler.
+ *
+ * Every message type is charged to one of four budgets, each a bucket refilled at
+ * ratelimit.X.perSecond up to ratelimit.X.burst (perSecond=0 means unlimited):
+ * - chat: CHAT_ALL and CHAT_PRIVATE, one token each. Over the limit a message is
+ *   rejected and the sender told so, at most once a second.
+ * - collab: COLLAB_SYNC, one token each. It asks for a fresh snapshot of a room, so over
+ *   the limit only the newest request per room and recipient is held and passed on once
+ *   the bucket has refilled; any other collab message releases it first to keep the
+ *   order. COLLAB_OP also takes one token, but an edit can be neither dropped nor
+ *   merged, so it is paced like a file below.
+ * - file: FILE, IMAGE, FILE_CHUNK and AVATAR_UPDATE, one token per byte. The message
+ *   always goes through, and if that leaves the bucket in debt the connection stops
+ *   reading until it is paid off, which pushes back on the sender through TCP.
+ * - control: every other request, including LOGIN, REGISTER, BLOB_REQUEST,
+ *   HISTORY_REQUEST and the collab handshake, one token each. A client sends each of
+ *   these once and waits for the answer, so none is dropped; they are paced like a file.
+ *   Types only the server sends (LOGIN_SUCCESS, HISTORY_PAGE, ...) have no handler and
+ *   take from the same bucket, but over the limit they are dropped.
+ * FILE_CHUNK_ACK, LOGOUT and PRESENCE_SYNC are free. A client sends PRESENCE_SYNC once
+ * per missed delta and does not retry, so dropping one would leave its list stale.
+ *
+ * Before login the buckets belong to the connection. After login they are the user's,
+ * shared by all of that user's sessions so a second connection does not double the
+ * budget. A message that passes costs an array lookup and one uncontended bucket update.
+ */
+public class RateLimitHandler extends ChannelInboundHandlerAdapter {
+    private enum Budget { FREE, CHAT, COLLAB, COLLAB_OP, FILE, CONTROL, STRAY }
+
+    private static final boolean ENABLED = ServerConfig.getBoolean("ratelimit.enabled", true);
+    private static final long NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Budget[] BUDGETS = new Budget[MessageType.values().length];
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            BUDGETS[type.ordinal()] = budgetOf(type);
+        }
+    }
+
+    private static Budget budgetOf(MessageType type) {
+        switch (type) {
+            case FILE_CHUNK_ACK:
+            case LOGOUT:
+            case PRESENCE_SYNC:
+                return Budget.FREE;
+            case CHAT_ALL:
+            case CHAT_PRIVATE:
+                return Budget.CHAT;
+            case COLLAB_SYNC:
+                return Budget.COLLAB;
+            case COLLAB_OP:
+                return Budget.COLLAB_OP;
+            case FILE:
+            case IMAGE:
+            case FILE_CHUNK:
+            case AVATAR_UPDATE:
+                return Budget.FILE;
+            case UPDATE_USERS:
+            case LOGIN_SUCCESS:
+            case LOGIN_FAIL:
+            case REGISTER_SUCCESS:
+            case REGISTER_FAIL:
+            case FRIEND_LIST:
+            case ADMIN_USER_LIST:
+            case FORCE_LOGOUT:
+            case COLLAB_UPDATE:
+            case COLLAB_LOCK:
+            case COLLAB_UNLOCK:
+            case HISTORY_PAGE:
+            case PRESENCE_JOIN:
+            case PRESENCE_LEAVE:
+                return Budget.STRAY;
+            default:
+                return Budget.CONTROL;
+        }
+    }
+
+    // How often each action fired, across all channels
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder held = new LongAdder();
+    private static final LongAdder paused = new LongAdder();
+
+    /** One token bucket. Synchronized because a user's sessions can be on different event loops. */
+    static final class Bucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long last;
+
+        Bucket(double perSecond, double burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.last = System.nanoTime();
+        }
+
+        // A bucket for the ratelimit.<name> keys, or null when that budget is unlimited
+        static Bucket of(String name, double perSecond, double burst) {
+            double rate = ServerConfig.getDouble("ratelimit." + name + ".perSecond", perSecond);
+            return rate > 0 ? new Bucket(rate, ServerConfig.getDouble("ratelimit." + name + ".burst", burst)) : null;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+        }
+
+        synchronized boolean tryTake(double cost, long now) {
+            refill(now);
+            if (tokens < cost) {
+                return false;
+            }
+            tokens -= cost;
+            return true;
+        }
+
+        // Takes cost even if that leaves the bucket in debt; returns how long until it is out of it
+        synchronized long take(double cost, long now) {
+            refill(now);
+            tokens -= cost;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano);
+        }
+
+        synchronized long nanosUntil(double cost, long now) {
+            refill(now);
+            return tokens >= cost ? 0 : (long) Math.ceil((cost - tokens) / perNano);
+        }
+    }
+
+    /** The four budgets of one connection or user. */
+    static final class Buckets {
+        final Bucket chat = Bucket.of("chat", 10, 40);
+        final Bucket collab = Bucket.of("collab", 30, 60);
+        final Bucket file = Bucket.of("file", 8 << 20, 32 << 20);
+        final Bucket control = Bucket.of("control", 20, 60);
+    }
+
+    private static final ConcurrentHashMap<String, Buckets> byUser = new ConcurrentHashMap<>();
+
+    private String user;
+    private Buckets buckets = new Buckets();
+    // Resync requests waiting for tokens, newest per room and recipient, oldest key first
+    private final LinkedHashMap<String, Message> heldCollab = new LinkedHashMap<>();
+    private ScheduledFuture<?> releaseTask;
+    private ScheduledFuture<?> resumeTask;
+    private long lastNotice;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!ENABLED || !(msg instanceof Message) || ((Message) msg).getType() == null) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        Message m = (Message) msg;
+        Buckets b = buckets(ctx);
+        long now = System.nanoTime();
+        switch (BUDGETS[m.getType().ordinal()]) {
+            case FREE:
+                ctx.fireChannelRead(m);
+                break;
+            case CHAT:
+                if (b.chat == null || b.chat.tryTake(1, now)) {
+                    ctx.fireChannelRead(m);
+                } else {
+                    reject(ctx, m, now);
+                }
+                break;
+            case COLLAB:
+                collab(ctx, b, m, now);
+                break;
+            case COLLAB_OP:
+                if (!heldCollab.isEmpty()) {
+                    releaseHeld(ctx, true);
+                }
+                pace(ctx, b.collab, 1, m, now);
+                break;
+            case FILE:
+                pace(ctx, b.file, m.getFileData() != null ? m.getFileData().length : 0, m, now);
+                break;
+            case STRAY:
+                if (b.control != null && !b.control.tryTake(1, now)) {
+                    dropped.increment();
+                    break;
+                }
+                ctx.fireChannelRead(m);
+                break;
+            default:
+                if (!heldCollab.isEmpty() && m.getType().name().startsWith("COLLAB_")) {
+                    releaseHeld(ctx, true); // Keep held requests ahead of e.g. COLLAB_END
+                }
+                pace(ctx, b.control, 1, m, now);
+                break;
+        }
+    }
+
+    // The user's shared buckets once logged in, this connection's own before that
+    private Buckets buckets(ChannelHandlerContext ctx) {
+        String current = ctx.channel().attr(SessionRegistry.USER).get();
+        if (!Objects.equals(current, user)) {
+            user = current;
+            buckets = current != null ? byUser.computeIfAbsent(current, k -> new Buckets()) : new Buckets();
+        }
+        return buckets;
+    }
+
+    private void reject(ChannelHandlerContext ctx, Message m, long now) {
+        rejected.increment();
+        if (now - lastNotice < NOTICE_INTERVAL_NANOS) {
+            return;
+        }
+        lastNotice = now;
+        Message notice = new Message();
+        notice.setType(MessageType.CHAT_PRIVATE);
+        notice.setSender("System");
+        notice.setRecipient(user);
+        notice.setContent("Message failed: You are sending messages too fast");
+        WriteBatcher.write(ctx.channel(), notice);
+    }
+
+    private void collab(ChannelHandlerContext ctx, Buckets b, Message m, long now) {
+        if (b.collab == null || (heldCollab.isEmpty() && b.collab.tryTake(1, now))) {
+            ctx.fireChannelRead(m);
+            return;
+        }
+        if (heldCollab.put(m.getType() + "|" + m.getExtraInfo() + "|" + m.getRecipient(), m) != null) {
+            coalesced.increment();
+        } else {
+            held.increment();
+        }
+        scheduleRelease(ctx, b.collab.nanosUntil(1, now));
+    }
+
+    private void scheduleRelease(ChannelHandlerContext ctx, long delayNanos) {
+        if (releaseTask == null) {
+            releaseTask = ctx.executor().schedule(() -> {
+                releaseTask = null;
+                Bucket bucket = buckets.collab;
+                releaseHeld(ctx, bucket == null);
+                if (!heldCollab.isEmpty()) {
+                    scheduleRelease(ctx, bucket.nanosUntil(1, System.nanoTime()));
+                }
+            }, Math.max(delayNanos, MIN_DELAY_NANOS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Passes on held requests, oldest first, while there are tokens for them or unconditionally if all
+    private void releaseHeld(ChannelHandlerContext ctx, boolean all) {
+        Bucket bucket = buckets.collab;
+        Iterator<Map.Entry<String, Message>> it = heldCollab.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!all && bucket != null && !bucket.tryTake(1, System.nanoTime())) {
+                break;
+            }
+            Message m = it.next().getValue();
+            it.remove();
+            ctx.fireChannelRead(m);
+        }
+    }
+
+    // Passes m on and, if its cost leaves the bucket in debt, stops reading until that is paid off
+    private void pace(ChannelHandlerContext ctx, Bucket bucket, long cost, Message m, long now) {
+        long wait = bucket != null && cost > 0 ? bucket.take(cost, now) : 0;
+        ctx.fireChannelRead(m);
+        if (wait > 0 && resumeTask == null) {
+            paused.increment();
+            ReadPause.pause(ctx.channel(), ReadPause.RATE_LIMIT);
+            scheduleResume(ctx, bucket, wait);
+        }
+    }
+
+    // Reading resumes once the bucket is out of debt, including what frames already read added to it
+    private void scheduleResume(ChannelHandlerContext ctx, Bucket bucket, long delayNanos) {
+        resumeTask = ctx.executor().schedule(() -> {
+            long more = bucket.nanosUntil(0, System.nanoTime());
+            if (more > 0) {
+                scheduleResume(ctx, bucket, more);
+                return;
+            }
+            resumeTask = null;
+            ReadPause.resume(ctx.channel(), ReadPause.RATE_LIMIT);
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        super.channelInactive(ctx); // NettyServerHandler takes the session out of the registry
+        if (user != null && !SessionRegistry.isOnline(user)) {
+            byUser.remove(user);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        cancel();
+    }
+
+    private void cancel() {
+        heldCollab.clear();
+        if (releaseTask != null) {
+            releaseTask.cancel(false);
+            releaseTask = null;
+        }
+        if (resumeTask != null) {
+            resumeTask.cancel(false);
+            resumeTask = null;
+        }
+    }
+
+    public static String stats() {
+        return "rejected=" + rejected.sum()
+                + " dropped=" + dropped.sum()
+                + " held=" + held.sum()
+                + " coalesced=" + coalesced.sum()
+                + " paused=" + paused.sum();
+    }
+
+    public static long getRejected() { return rejected.sum(); }
+    public static long getDropped() { return dropped.sum(); }
+    public static long getHeld() { return held.sum(); }
+    public static long getCoalesced() { return coalesced.sum(); }
+    public static long getPaused() { return paused.sum(); }
+}
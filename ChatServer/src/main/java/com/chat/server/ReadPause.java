@@ -0,0 +1,38 @@
+package com.chat.server;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Stops reading from a channel for one or more reasons at once.
+ *
+ * autoRead is a single flag, so two handlers toggling it would resume each other's
+ * pauses. Each reason here is a bit instead, and reading resumes only once no bit is
+ * left. Called on the channel's event loop.
+ */
+public class ReadPause {
+    public static final int RATE_LIMIT = 1;   // A token bucket is in debt, see RateLimitHandler
+    public static final int BACKLOG = 1 << 1; // Too many messages wait for the database, see NettyServerHandler
+
+    private static final AttributeKey<Integer> REASONS = AttributeKey.valueOf("readPauses");
+
+    public static void pause(Channel channel, int reason) {
+        Attribute<Integer> reasons = channel.attr(REASONS);
+        int before = reasons.get() != null ? reasons.get() : 0;
+        reasons.set(before | reason);
+        if (before == 0) {
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    public static void resume(Channel channel, int reason) {
+        Attribute<Integer> reasons = channel.attr(REASONS);
+        int before = reasons.get() != null ? reasons.get() : 0;
+        int after = before & ~reason;
+        reasons.set(after);
+        if (before != 0 && after == 0) {
+            channel.config().setAutoRead(true);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Server settings from server.properties in the working directory, if present.
+ * A system property with the same key (-Dkey=value) wins over the file.
+ */
+public class ServerConfig {
+    private static final Path FILE = Paths.get("server.properties");
+    private static final Properties props = load();
+
+    private static Properties load() {
+        Properties p = new Properties();
+        if (Files.isRegularFile(FILE)) {
+            try (InputStream in = Files.newInputStream(FILE)) {
+                p.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return p;
+    }
+
+    public static String getString(String key, String def) {
+        String value = System.getProperty(key, props.getProperty(key));
+        return value != null ? value.trim() : def;
+    }
+
+    public static int getInt(String key, int def) {
+        String value = getString(key, null);
+        try {
+            return value != null ? Integer.parseInt(value) : def;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + def);
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String value = getString(key, null);
+        try {
+            return value != null ? Long.parseLong(value) : def;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + def);
+            return def;
+        }
+    }
+
+    public static double getDouble(String key, double def) {
+        String value = getString(key, null);
+        try {
+            return value != null ? Double.parseDouble(value) : def;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + def);
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String value = getString(key, null);
+        return value != null ? Boolean.parseBoolean(value) : def;
+    }
+}
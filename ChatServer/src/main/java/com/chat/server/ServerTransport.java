@@ -0,0 +1,105 @@
+package com.chat.server;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.lang.reflect.Constructor;
+import java.util.function.IntFunction;
+
+/**
+ * The Netty transport the server runs on, picked by net.transport:
+ * auto (default) tries io_uring, then epoll, then falls back to NIO;
+ * io_uring, epoll or nio ask for one, falling back to NIO if it cannot load.
+ *
+ * io_uring comes from netty-incubator-transport-native-io_uring, which is not a
+ * dependency of the server; it is loaded by reflection and only used when that jar is
+ * on the classpath and the kernel supports it. Epoll ships with netty-all.
+ */
+public class ServerTransport {
+    private static final String URING = "io.netty.incubator.channel.uring.";
+
+    public final String name;
+    public final Class<? extends ServerChannel> serverChannel;
+    // null when the transport cannot bind several acceptors to one port
+    public final ChannelOption<Boolean> reusePort;
+    private final IntFunction<EventLoopGroup> groups;
+
+    private ServerTransport(String name, Class<? extends ServerChannel> serverChannel,
+                            ChannelOption<Boolean> reusePort, IntFunction<EventLoopGroup> groups) {
+        this.name = name;
+        this.serverChannel = serverChannel;
+        this.reusePort = reusePort;
+        this.groups = groups;
+    }
+
+    // threads <= 0 means Netty's default, twice the number of cores
+    public EventLoopGroup newGroup(int threads) {
+        return groups.apply(Math.max(threads, 0));
+    }
+
+    public static ServerTransport select() {
+        String wanted = ServerConfig.getString("net.transport", "auto").toLowerCase();
+        ServerTransport t = null;
+        if (wanted.equals("auto") || wanted.equals("io_uring")) {
+            t = ioUring();
+        }
+        if (t == null && (wanted.equals("auto") || wanted.equals("epoll"))) {
+            t = epoll();
+        }
+        if (t == null) {
+            if (!wanted.equals("auto") && !wanted.equals("nio")) {
+                System.err.println("Transport " + wanted + " is not available here, using nio");
+            }
+            t = nio();
+        }
+        return t;
+    }
+
+    private static ServerTransport nio() {
+        return new ServerTransport("nio", NioServerSocketChannel.class, null, NioEventLoopGroup::new);
+    }
+
+    private static ServerTransport epoll() {
+        try {
+            if (!Epoll.isAvailable()) {
+                return null;
+            }
+        } catch (Throwable e) {
+            return null; // Not Linux, or the native library is missing
+        }
+        return new ServerTransport("epoll", EpollServerSocketChannel.class,
+                EpollChannelOption.SO_REUSEPORT, EpollEventLoopGroup::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ServerTransport ioUring() {
+        try {
+            Class<?> ioUring = Class.forName(URING + "IOUring");
+            if (!(Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+            Class<? extends ServerChannel> channel =
+                    (Class<? extends ServerChannel>) Class.forName(URING + "IOUringServerSocketChannel");
+            ChannelOption<Boolean> reusePort = (ChannelOption<Boolean>)
+                    Class.forName(URING + "IOUringChannelOption").getField("SO_REUSEPORT").get(null);
+            Constructor<?> group =
+                    Class.forName(URING + "IOUringEventLoopGroup").getConstructor(int.class);
+            return new ServerTransport("io_uring", channel, reusePort, threads -> {
+                try {
+                    return (EventLoopGroup) group.newInstance(threads);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Cannot create io_uring event loop", e);
+                }
+            });
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
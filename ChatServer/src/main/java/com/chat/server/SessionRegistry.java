@@ -0,0 +1,128 @@
+package com.chat.server;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logged-in sessions, as username -> every channel that user is logged in on.
+ *
+ * A user can be logged in from more than one place (desktop plus a second device), so
+ * each user maps to an array of sessions that is replaced, never modified, on login and
+ * logout. Updates go through ConcurrentHashMap.compute and only lock the one hash bin,
+ * and lookups return the current array as is, so sending to a user neither locks nor
+ * allocates. Every logged-in channel is also kept in one flat set for broadcasts.
+ *
+ * Sessions are removed by (username, channel), so a connection that closes after the
+ * same user logged in again elsewhere only takes itself out.
+ */
+public class SessionRegistry {
+    // Set on a channel while it is logged in, for handlers that need to know whose it is
+    public static final AttributeKey<String> USER = AttributeKey.valueOf("user");
+
+    public static final class Session {
+        public final String username;
+        public final Channel channel;
+        public final long loginTime;
+
+        Session(String username, Channel channel) {
+            this.username = username;
+            this.channel = channel;
+            this.loginTime = System.currentTimeMillis();
+        }
+    }
+
+    private static final Session[] NONE = new Session[0];
+
+    private static final ConcurrentHashMap<String, Session[]> sessions = new ConcurrentHashMap<>();
+    private static final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+    private static final Collection<Channel> channelsView = Collections.unmodifiableSet(channels);
+    private static final Set<String> usernamesView = Collections.unmodifiableSet(sessions.keySet());
+
+    // Returns true if this is the user's first session, i.e. the user just came online
+    public static boolean add(String username, Channel channel) {
+        Session session = new Session(username, channel);
+        boolean[] first = new boolean[1];
+        sessions.compute(username, (k, old) -> {
+            if (old == null) {
+                first[0] = true;
+                return new Session[]{session};
+            }
+            for (Session s : old) {
+                if (s.channel == channel) {
+                    return old;
+                }
+            }
+            Session[] grown = Arrays.copyOf(old, old.length + 1);
+            grown[old.length] = session;
+            return grown;
+        });
+        channels.add(channel);
+        channel.attr(USER).set(username);
+        return first[0];
+    }
+
+    // Returns true if this was the user's last session, i.e. the user just went offline
+    public static boolean remove(String username, Channel channel) {
+        if (username == null || !channels.remove(channel)) {
+            return false;
+        }
+        channel.attr(USER).set(null);
+        boolean[] last = new boolean[1];
+        sessions.computeIfPresent(username, (k, old) -> {
+            int i = 0;
+            while (i < old.length && old[i].channel != channel) i++;
+            if (i == old.length) {
+                return old;
+            }
+            if (old.length == 1) {
+                last[0] = true;
+                return null;
+            }
+            Session[] shrunk = new Session[old.length - 1];
+            System.arraycopy(old, 0, shrunk, 0, i);
+            System.arraycopy(old, i + 1, shrunk, i, old.length - i - 1);
+            return shrunk;
+        });
+        return last[0];
+    }
+
+    // The shared array, oldest session first. Callers must not modify it.
+    public static Session[] sessionsOf(String username) {
+        Session[] s = username != null ? sessions.get(username) : null;
+        return s != null ? s : NONE;
+    }
+
+    // The most recent session's channel, or null when the user is offline
+    public static Channel latest(String username) {
+        Session[] s = sessionsOf(username);
+        return s.length > 0 ? s[s.length - 1].channel : null;
+    }
+
+    public static boolean isOnline(String username) {
+        return username != null && sessions.containsKey(username);
+    }
+
+    // Live view of every logged-in channel, for broadcasts
+    public static Collection<Channel> channels() {
+        return channelsView;
+    }
+
+    // Live view of every logged-in username
+    public static Set<String> usernames() {
+        return usernamesView;
+    }
+
+    public static int userCount() {
+        return sessions.size();
+    }
+
+    public static int sessionCount() {
+        return channels.size();
+    }
+}
@@ -0,0 +1,213 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import com.chat.common.MessageType;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one slow client from growing an unbounded outbound buffer on the server.
+ *
+ * While the channel is writable, messages pass straight through. Once it crosses the
+ * high water mark, messages wait in a bounded per-channel queue that drains when the
+ * channel becomes writable again. A backlog is handled in three steps:
+ * 1. Presence updates and deltas are dropped. When the backlog has cleared, a
+ *    PRESENCE_STALE event tells the server handler to send a fresh snapshot.
+ * 2. Past half the queue limit, a message that supersedes one still queued replaces it:
+ *    a newer friend list or admin list from the same sender. Collab snapshots are not
+ *    merged, each belongs to its own room and is ordered with that room's ops.
+ * 3. When the queue is full, or the channel has been backed up longer than
+ *    outbound.maxStallMs, the client is disconnected.
+ *
+ * FILE_CHUNK streams go through untouched because ChunkedWriteHandler already paces them.
+ */
+public class SlowConsumerHandler extends ChannelDuplexHandler {
+    public static final Object PRESENCE_STALE = new Object();
+
+    private static final int QUEUE_LIMIT = ServerConfig.getInt("outbound.queueLimit", 1024);
+    private static final long MAX_STALL_MS = ServerConfig.getLong("outbound.maxStallMs", 30_000);
+
+    // How often each step fired, across all channels
+    private static final LongAdder queued = new LongAdder();
+    private static final LongAdder presenceDropped = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder disconnected = new LongAdder();
+
+    private static final class Pending {
+        Object msg;
+        ChannelPromise promise;
+        final MessageType type;
+        final String sender;
+
+        Pending(Object msg, ChannelPromise promise, MessageType type, String sender) {
+            this.msg = msg;
+            this.promise = promise;
+            this.type = type;
+            this.sender = sender;
+        }
+    }
+
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private long backedUpSince;
+    private boolean presenceStale;
+    private boolean closing;
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        Object out;
+        MessageType type;
+        String sender;
+        if (msg instanceof Message) {
+            out = msg;
+            type = ((Message) msg).getType();
+            sender = ((Message) msg).getSender();
+        } else if (msg instanceof OutboundFrame) {
+            OutboundFrame f = (OutboundFrame) msg;
+            out = f.frame;
+            type = f.type;
+            sender = f.sender;
+        } else {
+            ctx.write(msg, promise); // Chunked file streams pace themselves
+            return;
+        }
+
+        if (queue.isEmpty() && ctx.channel().isWritable()) {
+            ctx.write(out, promise);
+            return;
+        }
+        enqueue(ctx, out, promise, type, sender);
+    }
+
+    private void enqueue(ChannelHandlerContext ctx, Object out, ChannelPromise promise, MessageType type, String sender) {
+        if (closing) {
+            discard(out, promise, true);
+            return;
+        }
+        if (type == MessageType.UPDATE_USERS || type == MessageType.PRESENCE_JOIN
+                || type == MessageType.PRESENCE_LEAVE) {
+            presenceDropped.increment();
+            presenceStale = true;
+            discard(out, promise, false);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (queue.isEmpty() || backedUpSince == 0) {
+            backedUpSince = now;
+        } else if (MAX_STALL_MS > 0 && now - backedUpSince > MAX_STALL_MS) {
+            discard(out, promise, true);
+            disconnect(ctx, "no progress for " + (now - backedUpSince) + " ms");
+            return;
+        }
+
+        if (queue.size() >= QUEUE_LIMIT / 2 && supersedes(type)) {
+            Iterator<Pending> it = queue.descendingIterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                if (p.type == type && (sender == null ? p.sender == null : sender.equals(p.sender))) {
+                    discard(p.msg, p.promise, false);
+                    p.msg = out;
+                    p.promise = promise;
+                    coalesced.increment();
+                    return;
+                }
+            }
+        }
+
+        if (queue.size() >= QUEUE_LIMIT) {
+            discard(out, promise, true);
+            disconnect(ctx, queue.size() + " messages queued");
+            return;
+        }
+        queue.add(new Pending(out, promise, type, sender));
+        queued.increment();
+    }
+
+    // Messages whose newest copy makes older queued ones pointless
+    private static boolean supersedes(MessageType type) {
+        return type == MessageType.FRIEND_LIST || type == MessageType.ADMIN_USER_LIST;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private void drain(ChannelHandlerContext ctx) {
+        boolean wrote = false;
+        while (!queue.isEmpty() && ctx.channel().isWritable()) {
+            Pending p = queue.poll();
+            ctx.write(p.msg, p.promise);
+            wrote = true;
+        }
+        if (wrote) {
+            ctx.flush();
+        }
+        if (queue.isEmpty()) {
+            backedUpSince = 0;
+            if (presenceStale && ctx.channel().isWritable()) {
+                presenceStale = false;
+                ctx.fireUserEventTriggered(PRESENCE_STALE);
+            }
+        } else {
+            backedUpSince = System.currentTimeMillis(); // Made progress
+        }
+    }
+
+    private void disconnect(ChannelHandlerContext ctx, String reason) {
+        closing = true;
+        disconnected.increment();
+        System.out.println("Disconnecting slow consumer " + ctx.channel().remoteAddress() + ": " + reason);
+        releaseQueued();
+        ctx.close();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseQueued();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseQueued();
+    }
+
+    private void releaseQueued() {
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            discard(p.msg, p.promise, true);
+        }
+    }
+
+    private static void discard(Object msg, ChannelPromise promise, boolean failed) {
+        ReferenceCountUtil.release(msg);
+        if (failed) {
+            promise.tryFailure(new ClosedChannelException());
+        } else {
+            promise.trySuccess();
+        }
+    }
+
+    public static String stats() {
+        return "queued=" + queued.sum()
+                + " presenceDropped=" + presenceDropped.sum()
+                + " coalesced=" + coalesced.sum()
+                + " disconnected=" + disconnected.sum();
+    }
+
+    public static long getQueued() { return queued.sum(); }
+    public static long getPresenceDropped() { return presenceDropped.sum(); }
+    public static long getCoalesced() { return coalesced.sum(); }
+    public static long getDisconnected() { return disconnected.sum(); }
+}
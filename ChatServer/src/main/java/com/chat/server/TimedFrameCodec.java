@@ -0,0 +1,19 @@
+package com.chat.server;
+
+import com.chat.common.MessageFrameCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.List;
+
+/**
+ * MessageFrameCodec that records how long each inbound frame takes to decode.
+ */
+public class TimedFrameCodec extends MessageFrameCodec {
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) {
+        long start = System.nanoTime();
+        super.decode(ctx, frame, out);
+        Metrics.DECODE.recordSince(start);
+    }
+}
@@ -0,0 +1,111 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Every registered username in name order with its ban flag, for the admin user list.
+ *
+ * Loaded by DatabaseManager.init() and updated by DatabaseManager after each register,
+ * ban, unban and delete, so listing never scans the users table. Names are kept in a
+ * skip list, and banned names in a second one, so a page is a range of one sorted set:
+ * the names starting with a prefix, after the previous page's last name, up to the page
+ * size. The online filter starts from the logged-in users instead, usually far fewer.
+ */
+public class UserDirectory {
+    public enum Filter {
+        ALL, ONLINE, BANNED;
+
+        // As sent in ADMIN_GET_USERS.extraInfo, anything else lists everyone
+        public static Filter parse(String s) {
+            if ("online".equalsIgnoreCase(s)) return ONLINE;
+            if ("banned".equalsIgnoreCase(s)) return BANNED;
+            return ALL;
+        }
+    }
+
+    private static final ConcurrentSkipListMap<String, Boolean> users = new ConcurrentSkipListMap<>();
+    private static final ConcurrentSkipListSet<String> banned = new ConcurrentSkipListSet<>();
+
+    public static void put(String username, boolean isBanned) {
+        username = username.intern();
+        users.put(username, isBanned);
+        if (isBanned) {
+            banned.add(username);
+        } else {
+            banned.remove(username);
+        }
+    }
+
+    public static void setBanned(String username, boolean isBanned) {
+        if (users.replace(username, isBanned) != null) {
+            if (isBanned) {
+                banned.add(username);
+            } else {
+                banned.remove(username);
+            }
+        }
+    }
+
+    public static void remove(String username) {
+        users.remove(username);
+        banned.remove(username);
+    }
+
+    public static void clear() {
+        users.clear();
+        banned.clear();
+    }
+
+    public static boolean isBanned(String username) {
+        return Boolean.TRUE.equals(users.get(username));
+    }
+
+    public static int size() {
+        return users.size();
+    }
+
+    // Up to limit matching names in name order, starting after the given name (null for the first page)
+    public static List<String> page(Filter filter, String prefix, String after, int limit) {
+        NavigableSet<String> names;
+        switch (filter) {
+            case BANNED:
+                names = banned;
+                break;
+            case ONLINE:
+                names = new TreeSet<>();
+                for (String u : SessionRegistry.usernames()) {
+                    if ((prefix == null || u.startsWith(prefix)) && (after == null || u.compareTo(after) > 0)) {
+                        names.add(u);
+                    }
+                }
+                break;
+            default:
+                names = users.keySet();
+                break;
+        }
+        if (prefix != null && !prefix.isEmpty()) {
+            String end = prefix + Character.MAX_VALUE;
+            if (after != null && after.compareTo(end) >= 0) {
+                return new ArrayList<>(); // The cursor is past every match
+            }
+            if (after != null && after.compareTo(prefix) < 0) {
+                after = null; // Or before all of them, a tailSet would be out of the subSet's range
+            }
+            names = names.subSet(prefix, true, end, false);
+        }
+        if (after != null) {
+            names = names.tailSet(after, false);
+        }
+        List<String> page = new ArrayList<>(Math.min(limit, 64));
+        for (String name : names) {
+            if (page.size() == limit) break;
+            page.add(name);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,87 @@
+package com.chat.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the login columns of the users table, as username -> profile.
+ *
+ * Loaded by DatabaseManager.init() and kept current by DatabaseManager's writes
+ * (register, ban, unban, delete), so a login for a known user is answered without a
+ * query. After a restart every client reconnects at once, and they all hit the copy
+ * loaded at startup instead of queueing on the database threads. Past
+ * cache.profiles entries (100000 by default) further users are not cached and are
+ * looked up on each login.
+ *
+ * A profile read from the database on a miss is only cached if no write changed any
+ * profile since the read began, so a ban that lands during a login query is not
+ * overwritten by the row read just before it.
+ */
+public class UserProfiles {
+    private static final int MAX = ServerConfig.getInt("cache.profiles", 100_000);
+
+    /** Immutable; a change replaces the whole profile. */
+    public static final class Profile {
+        public final String password;
+        public final String avatarColor;
+        public final boolean banned;
+
+        public Profile(String password, String avatarColor, boolean banned) {
+            this.password = password;
+            this.avatarColor = avatarColor;
+            this.banned = banned;
+        }
+    }
+
+    private static final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+    // Bumped by every write, see putIfUnchanged
+    private static long writes;
+
+    public static Profile get(String username) {
+        return username != null ? profiles.get(username) : null;
+    }
+
+    // Taken before reading a profile from the database, for putIfUnchanged
+    public static synchronized long stamp() {
+        return writes;
+    }
+
+    public static synchronized void putIfUnchanged(String username, Profile profile, long stamp) {
+        if (stamp == writes) {
+            store(username, profile);
+        }
+    }
+
+    private static void store(String username, Profile profile) {
+        if (profiles.size() < MAX || profiles.containsKey(username)) {
+            profiles.put(username.intern(), profile);
+        }
+    }
+
+    // The rest are called after the matching database write has been made
+
+    public static synchronized void put(String username, Profile profile) {
+        writes++;
+        store(username, profile);
+    }
+
+    // Only touches a cached profile, an uncached one is read fresh on its next login anyway
+    public static synchronized void setBanned(String username, boolean banned) {
+        writes++;
+        profiles.computeIfPresent(username, (k, p) -> new Profile(p.password, p.avatarColor, banned));
+    }
+
+    public static synchronized void remove(String username) {
+        writes++;
+        profiles.remove(username);
+    }
+
+    public static synchronized void clear() {
+        writes++;
+        profiles.clear();
+    }
+
+    public static int size() {
+        return profiles.size();
+    }
+}
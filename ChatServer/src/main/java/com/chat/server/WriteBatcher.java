@@ -0,0 +1,58 @@
+package com.chat.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes without flushing and flushes each channel once per event loop tick.
+ *
+ * The first write to a channel in a tick queues a flush task on its event loop; later
+ * writes in the same tick only add to the outbound buffer. The task runs after
+ * everything the loop is currently doing, so a login burst, a fan-out to many friends
+ * or a storm of chat frames all leave in one syscall per channel. Safe to call from
+ * any thread: off the loop the whole write is handed to the loop first, so a write can
+ * never land behind a flush task that has already cleared the flag.
+ */
+public class WriteBatcher {
+    private static final AttributeKey<Boolean> FLUSH_SCHEDULED = AttributeKey.valueOf("flushScheduled");
+
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+
+    public static ChannelFuture write(Channel channel, Object msg) {
+        if (!channel.eventLoop().inEventLoop()) {
+            ChannelPromise promise = channel.newPromise();
+            channel.eventLoop().execute(() -> write(channel, msg, promise));
+            return promise;
+        }
+        return write(channel, msg, channel.newPromise());
+    }
+
+    // Runs on the channel's event loop
+    private static ChannelFuture write(Channel channel, Object msg, ChannelPromise promise) {
+        ChannelFuture f = channel.write(msg, promise);
+        writes.increment();
+        Attribute<Boolean> scheduled = channel.attr(FLUSH_SCHEDULED);
+        if (scheduled.getAndSet(Boolean.TRUE) == null) {
+            channel.eventLoop().execute(() -> {
+                // Cleared first, writes made by the flush itself get a new task
+                scheduled.set(null);
+                flushes.increment();
+                channel.flush();
+            });
+        }
+        return f;
+    }
+
+    public static long getWrites() { return writes.sum(); }
+    public static long getFlushes() { return flushes.sum(); }
+
+    public static String stats() {
+        return "writes=" + writes.sum() + " flushes=" + flushes.sum();
+    }
+}